@@ -0,0 +1,6 @@
+# Build a native executable `dhall` of the command-line utility with GraalVM `native-image` and run the same tests as for the JAR.
+# The options, reflection and resource configurations are taken from scall-cli/src/main/resources/META-INF/native-image.
+set -e
+bash make_jar.sh
+native-image -jar dhall.jar -o dhall
+DHALL_COMMAND=./dhall bash test_jar.sh
@@ -0,0 +1,82 @@
+package io.chymyst.fastparse
+
+/** A hash table with non-negative `Int` keys, using open addressing with linear probing. Keys and values are stored in flat arrays, so lookups and updates
+  * allocate no memory (no boxed keys and no entry objects), except when the table grows. This class is not thread-safe.
+  */
+final class IntKeyedTable[V <: AnyRef](initialCapacity: Int = 16) {
+  private var keys: Array[Int]      = IntKeyedTable.emptyKeys(IntKeyedTable.capacityFor(initialCapacity))
+  private var values: Array[AnyRef] = new Array[AnyRef](keys.length)
+  private var count: Int            = 0
+
+  def size: Int = count
+
+  @inline private def firstSlot(key: Int, mask: Int): Int = {
+    val h = key * 0x9e3779b9
+    (h ^ (h >>> 16)) & mask
+  }
+
+  // Return the slot that contains `key`, or the empty slot where `key` should be inserted.
+  private def findSlot(key: Int): Int = {
+    val mask = keys.length - 1
+    var slot = firstSlot(key, mask)
+    while (keys(slot) != IntKeyedTable.empty && keys(slot) != key) slot = (slot + 1) & mask
+    slot
+  }
+
+  // Return the value stored under `key`, or `null` if there is no such value.
+  def getOrNull(key: Int): V = values(findSlot(key)).asInstanceOf[V]
+
+  def get(key: Int): Option[V] = Option(getOrNull(key))
+
+  def put(key: Int, value: V): Unit = {
+    require(key >= 0, s"IntKeyedTable requires non-negative keys, got $key")
+    val slot = findSlot(key)
+    if (keys(slot) == IntKeyedTable.empty) {
+      keys(slot) = key
+      count += 1
+    }
+    values(slot) = value
+    if (count * 2 > keys.length) grow()
+  }
+
+  // The `default` value is computed before it is stored, so it may itself update this table.
+  def getOrElseUpdate(key: Int, default: => V): V = {
+    val existing = getOrNull(key)
+    if (existing != null) existing
+    else {
+      val value = default
+      put(key, value)
+      value
+    }
+  }
+
+  private def grow(): Unit = {
+    val oldKeys   = keys
+    val oldValues = values
+    keys = IntKeyedTable.emptyKeys(oldKeys.length * 2)
+    values = new Array[AnyRef](keys.length)
+    var i         = 0
+    while (i < oldKeys.length) {
+      if (oldKeys(i) != IntKeyedTable.empty) {
+        val slot = findSlot(oldKeys(i))
+        keys(slot) = oldKeys(i)
+        values(slot) = oldValues(i)
+      }
+      i += 1
+    }
+  }
+
+  def clear(): Unit = {
+    java.util.Arrays.fill(keys, IntKeyedTable.empty)
+    java.util.Arrays.fill(values, null)
+    count = 0
+  }
+}
+
+object IntKeyedTable {
+  private val empty: Int = -1
+
+  private def capacityFor(size: Int): Int = Integer.highestOneBit(math.max(size, 8) * 2 - 1)
+
+  private def emptyKeys(capacity: Int): Array[Int] = Array.fill(capacity)(empty)
+}
@@ -20,7 +20,7 @@ final case class PRunData( // Copy all the mutable data from ParsingRun.
   successValue: Any,
   verboseFailures: Boolean,
   noDropBuffer: Boolean,
-  misc: collection.mutable.Map[Any, Any],
+  misc: collection.Map[Any, Any],
 ) {
   override def toString: String = {
     s"ParsingRun(index=$index, isSuccess = $isSuccess, successValue = $successValue)"
@@ -42,8 +42,13 @@ object PRunData { // Copy all the mutable data from a parsing run into a PRunDat
     pr.successValue,
     pr.verboseFailures,
     pr.noDropBuffer,
-    mutable.Map.from(pr.misc),
+    miscSnapshot(pr.misc),
   )
+
+  // The memo tables themselves are not part of the parsing result. Usually, `misc` contains nothing else, and then we do not need to copy it.
+  private def miscSnapshot(misc: collection.Map[Any, Any]): collection.Map[Any, Any] =
+    if (misc.isEmpty || (misc.size == 1 && misc.contains(Memoize.MemoTablesKey))) Map.empty
+    else Map.from(misc.iterator.filterNot(_._1 == Memoize.MemoTablesKey))
 }
 
 object Memoize {
@@ -62,11 +67,11 @@ object Memoize {
     pr.successValue = data.successValue
     pr.verboseFailures = data.verboseFailures
     pr.noDropBuffer = data.noDropBuffer
-    data.misc.foreach { case (k, v) => pr.misc.put(k, v) }
+    if (data.misc.nonEmpty) data.misc.foreach { case (k, v) => pr.misc.put(k, v) }
     pr
   }
 
-  @inline private def cacheGrammar[R](cache: mutable.Map[Int, PRunData], parser: => P[_])(implicit p: P[_]): P[R] = {
+  @inline private def cacheGrammar[R](cache: IntKeyedTable[PRunData], parser: => P[_])(implicit p: P[_]): P[R] = {
     // The `parser` has not yet been run! And it is mutable. Do not run it twice!
     val cachedData: PRunData = cache.getOrElseUpdate(p.index, PRunData.ofParsingRun(parser))
     // After the `parser` has been run on `p`, the value of `p` changes and becomes equal to the result of running the parser.
@@ -74,33 +79,36 @@ object Memoize {
     assignToParsingRun(cachedData, p).asInstanceOf[P[R]]
   }
 
-  private val cache = new mutable.HashMap[(sourcecode.File, sourcecode.Line), mutable.Map[Int, PRunData]]
+  // The key under which the memo tables are stored in `ParsingRun.misc`.
+  private[fastparse] case object MemoTablesKey
+
+  // Memo tables for all memoized parsers, stored in `ParsingRun.misc`. Each parsing run has its own memo tables, which are discarded after parsing.
+  // Different parsing runs may proceed concurrently, and parsing may be reentrant (for example, `Parsed.Failure.trace()` runs the parser again).
+  // A memoized parser is identified by its source file and line. Each memo table is keyed by the input offset.
+  // The tables are looked up by file name and then by line number, so that no key objects need to be allocated.
+  private final class MemoTables {
+    val tables = new mutable.HashMap[String, IntKeyedTable[IntKeyedTable[PRunData]]]
+  }
 
-  private def getOrCreateCache(file: sourcecode.File, line: sourcecode.Line): mutable.Map[Int, PRunData] = {
-    cache.getOrElseUpdate((file, line), new mutable.HashMap[Int, PRunData])
+  private def getOrCreateCache(file: sourcecode.File, line: sourcecode.Line)(implicit p: P[_]): IntKeyedTable[PRunData] = {
+    val memoTables = p.misc.getOrElseUpdate(MemoTablesKey, new MemoTables).asInstanceOf[MemoTables]
+    memoTables.tables.getOrElseUpdate(file.value, new IntKeyedTable[IntKeyedTable[PRunData]]).getOrElseUpdate(line.value, new IntKeyedTable[PRunData])
   }
 
   implicit class MemoizeParser[A](parser: => P[A]) {
     @inline def memoize(implicit file: sourcecode.File, line: sourcecode.Line, p: P[_]): P[A] = if (enable) {
-      val cache: mutable.Map[Int, PRunData] = getOrCreateCache(file, line)
+      val cache: IntKeyedTable[PRunData] = getOrCreateCache(file, line)
       cacheGrammar(cache, parser)
     } else parser
   }
 
-  def clearAll(): Unit = cache.values.foreach(_.clear())
-
   def parse[T](
     input: ParserInputSource,
     parser: P[_] => P[T],
     verboseFailures: Boolean = false,
     startIndex: Int = 0,
     instrument: Instrument = null,
-  ): Parsed[T] = {
-    clearAll()
-    val result = fastparse.parse(input, parser, verboseFailures, startIndex, instrument)
-    clearAll()
-    result
-  }
+  ): Parsed[T] = fastparse.parse(input, parser, verboseFailures, startIndex, instrument)
 
   def parseInputRaw[T](
     input: ParserInput,
@@ -110,11 +118,6 @@ object Memoize {
     traceIndex: Int = -1,
     instrument: Instrument = null,
     enableLogging: Boolean = true,
-  ): ParsingRun[T] = {
-    clearAll()
-    val result = fastparse.parseInputRaw(input, parser, verboseFailures, startIndex, traceIndex, instrument, enableLogging)
-    clearAll()
-    result
-  }
+  ): ParsingRun[T] = fastparse.parseInputRaw(input, parser, verboseFailures, startIndex, traceIndex, instrument, enableLogging)
 
 }
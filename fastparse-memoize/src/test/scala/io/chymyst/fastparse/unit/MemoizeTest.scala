@@ -3,10 +3,12 @@ package io.chymyst.fastparse.unit
 import com.eed3si9n.expecty.Expecty.expect
 import fastparse.NoWhitespace._
 import fastparse._
-import io.chymyst.fastparse.Memoize
+import io.chymyst.fastparse.{IntKeyedTable, Memoize}
 import io.chymyst.test.TestTimings
 import munit.FunSuite
 
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
 class MemoizeTest extends FunSuite with TestTimings {
 
   test("minimal slow grammar") {
@@ -107,4 +109,42 @@ class MemoizeTest extends FunSuite with TestTimings {
     // Memoization should speed up at least 200 times in this example, after JVM warmup.
     expect(elapsed1 > elapsed2 * 200)
   }
+
+  test("memoized parsers can run concurrently") {
+    import io.chymyst.fastparse.Memoize.MemoizeParser
+    def program[$: P]: P[Int] = P(expr ~ End)
+    def expr[$: P]: P[Int]    = P(minus | plus)
+    def minus[$: P]           = P(times ~ "-" ~ expr).map { case (x, y) => x - y }
+    def plus[$: P]            = P(times ~ ("+" ~ expr).rep).map { case (i, is) => i + is.sum }
+    def times[$: P]           = P(other ~ ("*" ~ other).rep).map { case (i, is) => i * is.product }
+    def other[$: P]: P[Int]   = P(number | ("(" ~ expr ~ ")")).memoize
+    def number[$: P]          = P(CharIn("0-9").rep(1)).!.map(_.toInt)
+
+    val inputs   = (1 to 200).map(i => ("(" * 10 + s"$i*2-1" + ")" * 10, i * 2 - 1))
+    val executor = Executors.newFixedThreadPool(8)
+    val results  = inputs.map { case (input, expected) =>
+      executor.submit(new Callable[Boolean] {
+        override def call(): Boolean = Memoize.parse(input, program(_)).get.value == expected
+      })
+    }
+    expect(results.forall(_.get(30, TimeUnit.SECONDS)))
+    executor.shutdown()
+  }
+
+  test("failure trace runs the memoized parser again with fresh memo tables") {
+    import io.chymyst.fastparse.Memoize.MemoizeParser
+    def program[$: P]: P[Unit] = P(other ~ End)
+    def other[$: P]: P[Unit]   = P("1" | ("(" ~ other ~ ")")).memoize
+    val failure                = Memoize.parse("((1)", program(_)).asInstanceOf[Parsed.Failure]
+    expect(failure.extra.trace().longMsg.nonEmpty, Memoize.parse("((1))", program(_)).isSuccess)
+  }
+
+  test("int-keyed table stores values by offset and grows") {
+    val table = new IntKeyedTable[String]()
+    (0 until 1000 by 3).foreach(i => table.put(i, i.toString))
+    expect(table.size == 334, table.getOrNull(999) == "999", table.getOrNull(1) == null, table.get(3) == Some("3"))
+    expect(table.getOrElseUpdate(1, { table.put(2, "two"); "one" }) == "one", table.getOrNull(2) == "two", table.size == 336)
+    table.clear()
+    expect(table.size == 0, table.getOrNull(0) == null)
+  }
 }
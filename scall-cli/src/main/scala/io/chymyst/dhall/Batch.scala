@@ -0,0 +1,136 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.Main.OutputMode
+import io.chymyst.dhall.Yaml.YamlOptions
+
+import java.io.{ByteArrayOutputStream, FilterOutputStream, OutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{FileSystems, Files, Path, Paths}
+import java.util.Locale
+import java.util.concurrent.Executors
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.jdk.CollectionConverters.IteratorHasAsScala
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/** Evaluate many Dhall files in one JVM. Files are processed in parallel on a work-stealing pool, and all files share the global caches, so that imports used
+  * by several files are resolved, type-checked, and normalized only once.
+  */
+object Batch {
+
+  final case class Job(input: Path, output: Path)
+
+  /** The outcome of one job.
+    *
+    * @param elapsedNanos
+    *   Wall-clock time spent on this job.
+    * @param error
+    *   The error message if the file could not be evaluated or exported. In that case, the output file is not written.
+    */
+  final case class Result(job: Job, elapsedNanos: Long, error: Option[String])
+
+  // The file name extension of output files in the given output mode.
+  def outputExtension(outputMode: OutputMode): String = outputMode match {
+    case OutputMode.Dhall | OutputMode.Decode => "dhall"
+    case OutputMode.Text                      => "txt"
+    case OutputMode.Yaml                      => "yaml"
+    case OutputMode.Json                      => "json"
+    case OutputMode.Toml                      => "toml"
+    case OutputMode.Encode                    => "dhallb"
+    case OutputMode.GetType                   => "type"
+    case OutputMode.GetHash                   => "sha256"
+  }
+
+  /** Read jobs from a text file with one job per line: the input path and the output path, separated by a tab character or, if the line contains no tabs, by
+    * white space. Empty lines and lines starting with `#` are ignored. Relative paths are resolved relative to the current directory.
+    */
+  def jobsFromList(listFile: Path): Seq[Job] = {
+    val lines = new String(Files.readAllBytes(listFile), StandardCharsets.UTF_8).split("\r?\n").toSeq.map(_.trim)
+    lines.filter(line => line.nonEmpty && !line.startsWith("#")).map { line =>
+      line.split(if (line.contains("\t")) "\t+" else "\\s+") match {
+        case Array(input, output) => Job(Paths.get(input.trim), Paths.get(output.trim))
+        case _                    => throw new Exception(s"Invalid line in the batch file $listFile, expected an input path and an output path: $line")
+      }
+    }
+  }
+
+  /** Find the input files that match a glob pattern, such as `**.dhall` under `config`. Each output file has the name of its input file with the extension for
+    * the given output mode. Output files are written next to their input files, or into a copy of the directory tree under `outputDirectory`.
+    */
+  def jobsFromGlob(pattern: String, outputDirectory: Option[Path], outputMode: OutputMode): Seq[Job] = {
+    // The directory to search is the longest prefix of the pattern that contains no special characters.
+    val fixedPrefix = pattern.takeWhile(c => !"*?[{".contains(c))
+    val baseDir     = Paths.get(if (fixedPrefix.contains("/")) fixedPrefix.take(fixedPrefix.lastIndexOf('/') + 1) else ".").normalize
+    val matcher     = FileSystems.getDefault.getPathMatcher("glob:" + pattern)
+    val allFiles    = if (Files.isDirectory(baseDir)) Using.resource(Files.walk(baseDir))(_.iterator.asScala.toList) else Nil
+    val inputs      = allFiles.map(_.normalize).filter(path => matcher.matches(path) && Files.isRegularFile(path))
+    inputs.sortBy(_.toString).map { input =>
+      val name       = input.getFileName.toString
+      val outputName = (if (name.contains(".")) name.take(name.lastIndexOf('.')) else name) + "." + outputExtension(outputMode)
+      val relative   = if (baseDir.toString.isEmpty) input else baseDir.relativize(input) // The current directory normalizes to an empty path.
+      val directory  = outputDirectory match {
+        case Some(dir) => Option(relative.getParent).map(dir.resolve).getOrElse(dir)
+        case None      => Option(input.getParent).getOrElse(Paths.get("."))
+      }
+      Job(input, directory.resolve(outputName))
+    }
+  }
+
+  // Pass all output through, and keep a copy of the first bytes in `head`. If `Main.process` fails, it writes only an error message, and that is kept here.
+  private final class HeadRecorder(output: OutputStream, head: ByteArrayOutputStream, limit: Int = 65536) extends FilterOutputStream(output) {
+    override def write(b: Int): Unit = {
+      if (head.size < limit) head.write(b)
+      out.write(b)
+    }
+
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+      head.write(b, off, math.min(len, limit - head.size))
+      out.write(b, off, len)
+    }
+  }
+
+  def runJob(job: Job, outputMode: OutputMode, options: YamlOptions): Result = {
+    val start = System.nanoTime()
+    val error =
+      try {
+        if (job.output.toAbsolutePath.normalize == job.input.toAbsolutePath.normalize) Some("The output file would overwrite the input file")
+        else {
+          // Stream the output into a temporary file, which replaces the output file only if evaluation succeeded. Otherwise, it holds the error message.
+          Option(job.output.toAbsolutePath.getParent).foreach(Files.createDirectories(_))
+          val errorMessage = new ByteArrayOutputStream()
+          val succeeded    = Main.writeFileAtomicallyIf[Boolean](job.output, identity) { output =>
+            Using.resource(Files.newInputStream(job.input))(Main.process(job.input, _, new HeadRecorder(output, errorMessage), outputMode, options))
+          }
+          if (succeeded) None else Some(new String(errorMessage.toByteArray, StandardCharsets.UTF_8).trim)
+        }
+      } catch {
+        case NonFatal(exception) => Some(exception.toString)
+      }
+    Result(job, System.nanoTime() - start, error)
+  }
+
+  // Run all jobs in parallel and return their results in the order of `jobs`. The jobs use the caches and the HTTP fetcher of the calling thread.
+  def run(jobs: Seq[Job], outputMode: OutputMode, options: YamlOptions, parallelism: Int = Runtime.getRuntime.availableProcessors): Seq[Result] = {
+    val context = EvaluationContext.capture()
+    val pool    = Executors.newWorkStealingPool(parallelism)
+    try {
+      implicit val executionContext: ExecutionContext = ExecutionContext.fromExecutorService(pool)
+      Await.result(Future.traverse(jobs)(job => Future(context.run(runJob(job, outputMode, options)))), Duration.Inf)
+    } finally pool.shutdown()
+  }
+
+  // A report with one line per job, with the slowest jobs first, followed by the totals.
+  def summary(results: Seq[Result], totalElapsedNanos: Long): String = {
+    def millis(nanos: Long): String = "%10.1f ms".formatLocal(Locale.ROOT, nanos.toDouble / 1e6)
+    val lines                       = results.sortBy(-_.elapsedNanos).map { result =>
+      val status = result.error match {
+        case Some(message) => s"FAILED: ${message.linesIterator.toSeq.headOption.getOrElse("")}"
+        case None          => s"-> ${result.job.output}"
+      }
+      s"${millis(result.elapsedNanos)}  ${result.job.input} $status"
+    }
+    val failed                      = results.count(_.error.isDefined)
+    (lines :+ s"Processed ${results.size} files ($failed failed) in ${millis(totalElapsedNanos).trim}").mkString("\n")
+  }
+}
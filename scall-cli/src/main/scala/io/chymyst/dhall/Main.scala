@@ -3,12 +3,17 @@ package io.chymyst.dhall
 import fastparse.Parsed
 import io.chymyst.dhall.Main.OutputMode.Decode
 import io.chymyst.dhall.Syntax.{DhallFile, Expression, ExpressionScheme}
+import io.chymyst.dhall.Toml.TomlOptions
 import io.chymyst.dhall.Yaml.YamlOptions
 import mainargs.{Flag, Leftover, ParserForMethods, arg, main}
 
-import java.io.{FileInputStream, FileOutputStream, InputStream, OutputStream}
-import java.nio.file.{Path, Paths}
+import java.io.{BufferedOutputStream, BufferedWriter, FileInputStream, InputStream, OutputStream, OutputStreamWriter}
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.PosixFileAttributeView
+import java.nio.file.{Files, Path, Paths, StandardCopyOption, StandardOpenOption}
 import java.time.LocalDateTime
+import java.util.UUID
+import scala.util.Using
 import sourcecode.{File => SourceFile, Line => SourceLine}
 
 object Main {
@@ -35,56 +40,86 @@ object Main {
     case object GetHash extends OutputMode
   }
 
-  def process(path: Path, input: InputStream, output: OutputStream, outputMode: OutputMode, options: YamlOptions): Unit = {
-    outputMode match {
+  /** Evaluate a Dhall file and write the result to `output` in the given output mode.
+    *
+    * The output is encoded to UTF-8 incrementally, without first building it as one string. The YAML, JSON, and TOML exporters check the entire value before
+    * writing anything, so an error message is never written after partial output. The stream is flushed but not closed.
+    *
+    * @return
+    *   False if an error message was written instead of the result.
+    */
+  def process(path: Path, input: InputStream, output: OutputStream, outputMode: OutputMode, options: YamlOptions): Boolean = {
+    val writer                        = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))
+    def writeLine(line: String): Unit = {
+      writer.write(line)
+      writer.write("\n")
+    }
+    val succeeded                     = outputMode match {
       case OutputMode.Decode =>
         // TODO streamline those APIs
-        output.write((Expression(CBORmodel.decodeCbor2(CBOR.java8ReadInputStreamToByteArray(input)).toScheme).print + "\n").getBytes("UTF-8"))
+        writeLine(Expression(CBORmodel.decodeCbor2(CBOR.java8ReadInputStreamToByteArray(input)).toScheme).print)
+        true
 
       case _ => // In all other modes, we need to evaluate the Dhall file to a normal form.
-        val outputBytes = Parser.parseDhallStream(input) match {
+        Parser.parseDhallStream(input) match {
           case Parsed.Success(dhallFile: DhallFile, _) =>
-            val resolved            = dhallFile.value.resolveImports(path)
-            val valueType           = resolved.inferType.map { t =>
+            val resolved  = dhallFile.value.resolveImports(path)
+            val valueType = resolved.inferType.map { t =>
               val normalForm = resolved.betaNormalized
               (t, normalForm)
             }
-            val result: Array[Byte] = valueType match {
+            valueType match {
               case TypecheckResult.Valid((tpe: Expression, expr: Expression)) =>
+                def writeResult(result: Either[String, Unit]): Boolean = result match {
+                  case Left(error) => writeLine(error); false
+                  case Right(_)    => true
+                }
                 outputMode match {
-                  case OutputMode.Dhall                  => (expr.print + "\n").getBytes("UTF-8")
+                  case OutputMode.Dhall                  => writeResult(Right(writeLine(expr.print)))
                   case OutputMode.Text                   =>
-                    (expr.scheme match {
-                      case ExpressionScheme.TextLiteral(List(), trailing) => trailing + "\n"
-                      case s                                              => s"Error: Dhall expression should have type Text but is instead: $s\n"
-                    }).getBytes("UTF-8")
-                  case OutputMode.Yaml | OutputMode.Json =>
-                    (Yaml.toYaml(dhallFile.copy(value = expr), options) match {
-                      case Left(value)  => value + "\n"
-                      case Right(value) => value
-                    }).getBytes("UTF-8")
+                    writeResult(expr.scheme match {
+                      case ExpressionScheme.TextLiteral(List(), trailing) => Right(writeLine(trailing))
+                      case s                                              => Left(s"Error: Dhall expression should have type Text but is instead: $s")
+                    })
+                  case OutputMode.Yaml | OutputMode.Json => writeResult(Yaml.writeYaml(dhallFile.copy(value = expr), options, writer))
                   case OutputMode.Encode                 =>
-                    expr.toCBORmodel.encodeCbor2
-                  case OutputMode.GetType                =>
-                    (tpe.print + "\n").getBytes("UTF-8")
-                  case OutputMode.GetHash                =>
-                    ("sha256:" + Semantics.semanticHash(expr, Paths.get(".")) + "\n").getBytes("UTF-8")
-                  case OutputMode.Toml                   =>
-                    (Toml.toToml(expr) match {
-                      case Left(value)  => value + "\n"
-                      case Right(value) => value
-                    }).getBytes("UTF-8")
+                    writer.flush()
+                    writeResult(Right(output.write(expr.toCBORmodel.encodeCbor2)))
+                  case OutputMode.GetType                => writeResult(Right(writeLine(tpe.print)))
+                  case OutputMode.GetHash                => writeResult(Right(writeLine("sha256:" + Semantics.semanticHash(expr, Paths.get(".")))))
+                  case OutputMode.Toml                   => writeResult(Toml.writeToml(expr, TomlOptions(), writer))
                 }
 
-              case TypecheckResult.Invalid(errors) =>
-                (errors.toString + "\n").getBytes("UTF-8")
+              case TypecheckResult.Invalid(errors) => writeLine(errors.toString); false
             }
-            result
 
-          case failure: Parsed.Failure => s"Error parsing Dhall input: $failure\n${failure.extra}\n".getBytes("UTF-8")
+          case failure: Parsed.Failure => writer.write(s"Error parsing Dhall input: $failure\n${failure.extra}\n"); false
         }
-        output.write(outputBytes)
     }
+    writer.flush()
+    succeeded
+  }
+
+  /** Write a file by writing to a temporary file in the same directory and then renaming it, so that the file is not left with partial output on failure.
+    *
+    * A new file gets the default permissions (as set by the umask), as if it were written directly. A replaced file keeps its permissions. The temporary file
+    * is not created by `Files.createTempFile` because that makes it readable only by its owner.
+    */
+  def writeFileAtomically[R](target: Path)(write: OutputStream => R): R = writeFileAtomicallyIf[R](target, _ => true)(write)
+
+  // The same as `writeFileAtomically`, except that the target file is left unchanged if `keep` is false for the result of `write`.
+  def writeFileAtomicallyIf[R](target: Path, keep: R => Boolean)(write: OutputStream => R): R = {
+    val absolute  = target.toAbsolutePath
+    val temporary = absolute.resolveSibling(s".${absolute.getFileName}.${UUID.randomUUID}.tmp")
+    try {
+      val result = Using.resource(new BufferedOutputStream(Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))(write)
+      if (keep(result)) {
+        if (Files.exists(absolute) && Files.getFileStore(temporary).supportsFileAttributeView(classOf[PosixFileAttributeView]))
+          Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(absolute))
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      }
+      result
+    } finally Files.deleteIfExists(temporary)
   }
 
   def parseArgs(args: Array[String]): OutputMode = args.lastOption match {
@@ -106,7 +141,7 @@ object Main {
   def `java -jar dhall.jar --flags... command`( // The name `dhall.jar` will be printed at the top of the help text.
     @arg(short = 'f', doc = "Path to the input Dhall file (default: stdin)")
     file: Option[String],
-    @arg(short = 'o', doc = "Path to the output file (default: stdout)")
+    @arg(short = 'o', doc = "Path to the output file (default: stdout), or the output directory for a batch with a glob pattern")
     output: Option[String],
     @arg(short = 'q', doc = "Quote all strings (for YAML output only; default is false)")
     quoted: Flag,
@@ -114,32 +149,104 @@ object Main {
     documents: Flag,
     @arg(short = 'i', doc = "Indentation depth for JSON and YAML (default: 2)")
     indent: Option[Int],
-    @arg(doc = "Optional command: decode, encode, hash, text, type, json, yaml, toml")
+    @arg(short = 'b', doc = "Evaluate many files in parallel: a glob pattern such as 'config/**.dhall', or @file listing input and output paths on each line")
+    batch: Option[String],
+    @arg(short = 'p', doc = s"Local TCP port for the commands serve and client (default: ${Server.defaultPort})")
+    port: Option[Int],
+    @arg(doc = "Optional command: decode, encode, hash, text, type, json, yaml, toml; or: compact-cache [directory...]; or: serve; or: client [command]")
     command: Leftover[String],
-  ): Unit = {
+  ): Unit = command.value.toList match {
+    case _ if batch.nonEmpty            => batch.foreach(evaluateBatch(_, file, output, quoted, documents, indent, command))
+    case "compact-cache" :: directories => compactCaches(directories.map(Paths.get(_)))
+    case "serve" :: Nil                 => Server.serve(port.getOrElse(Server.defaultPort))
+    case "client" :: arguments          => sendToServer(file, output, quoted, documents, indent, port.getOrElse(Server.defaultPort), arguments)
+    case _                              => evaluate(file, output, quoted, documents, indent, command)
+  }
+
+  // Create or compact the cache store in the given Dhall cache directories, or in the default cache directories.
+  def compactCaches(directories: Seq[Path]): Unit = {
+    val roots = if (directories.isEmpty) ImportResolution.dhallCacheRoots.toList else directories
+    roots.foreach { root =>
+      val result = SemanticHashStore.compact(root)
+      println(
+        s"Compacted the cache store in $root: ${result.records} records, ${result.importedFiles} imported from cache files, ${result.droppedRecords} dropped due to wrong hash"
+      )
+    }
+  }
+
+  private def evaluate(file: Option[String], output: Option[String], quoted: Flag, documents: Flag, indent: Option[Int], command: Leftover[String]): Unit = {
     val (inputPath, inputStream) = file match {
       case Some(inputFile) =>
         val path = Paths.get(inputFile)
         (path, new FileInputStream(path.toFile))
       case None            => (Paths.get("."), System.in)
     }
-    val outputStream             = output match {
-      case Some(outputFile) => new FileOutputStream(outputFile)
-      case None             => System.out
-    }
     val outputMode               = parseArgs(command.value.toArray)
-    process(
-      inputPath,
-      inputStream,
-      outputStream,
-      outputMode,
-      YamlOptions(
-        quoteAllStrings = quoted.value,
-        createDocuments = documents.value,
-        indent = indent.getOrElse(defaultIndent),
-        jsonFormat = outputMode == OutputMode.Json,
-      ),
+    val options                  = yamlOptions(outputMode, quoted, documents, indent)
+    output match {
+      case Some(outputFile) => writeFileAtomically(Paths.get(outputFile))(process(inputPath, inputStream, _, outputMode, options))
+      case None             => process(inputPath, inputStream, System.out, outputMode, options)
+    }
+  }
+
+  private def yamlOptions(outputMode: OutputMode, quoted: Flag, documents: Flag, indent: Option[Int]): YamlOptions = YamlOptions(
+    quoteAllStrings = quoted.value,
+    createDocuments = documents.value,
+    indent = indent.getOrElse(defaultIndent),
+    jsonFormat = outputMode == OutputMode.Json,
+  )
+
+  // Evaluate the files given by a glob pattern or by a list file, and print a timing summary. With a glob pattern, `output` is the output directory.
+  private def evaluateBatch(
+    batch: String,
+    file: Option[String],
+    output: Option[String],
+    quoted: Flag,
+    documents: Flag,
+    indent: Option[Int],
+    command: Leftover[String],
+  ): Unit = {
+    if (file.nonEmpty) {
+      System.err.println("Error: --batch cannot be used with --file, because the batch pattern or list gives the input files")
+      sys.exit(2)
+    }
+    val outputMode = parseArgs(command.value.toArray)
+    val jobs       =
+      if (batch.startsWith("@")) Batch.jobsFromList(Paths.get(batch.drop(1))) else Batch.jobsFromGlob(batch, output.map(Paths.get(_)), outputMode)
+    val start      = System.nanoTime()
+    val results    = Batch.run(jobs, outputMode, yamlOptions(outputMode, quoted, documents, indent))
+    println(Batch.summary(results, System.nanoTime() - start))
+    if (results.exists(_.error.isDefined)) sys.exit(1)
+  }
+
+  // Send the input to a running server instead of evaluating it in this process.
+  // Relative imports are resolved relative to the input file or to the current directory of the client.
+  private def sendToServer(
+    file: Option[String],
+    output: Option[String],
+    quoted: Flag,
+    documents: Flag,
+    indent: Option[Int],
+    port: Int,
+    arguments: List[String],
+  ): Unit = {
+    val (inputPath, input) = file match {
+      case Some(inputFile) => (Paths.get(inputFile), Files.readAllBytes(Paths.get(inputFile)))
+      case None            => (Paths.get("."), CBOR.java8ReadInputStreamToByteArray(System.in))
+    }
+    val request            = Server.Request(
+      command = arguments.lastOption.getOrElse(""),
+      path = inputPath.toAbsolutePath.toString,
+      quoteAllStrings = quoted.value,
+      createDocuments = documents.value,
+      indent = indent.getOrElse(defaultIndent),
+      input = input,
     )
+    val token              = Server.readTokenFile(Server.tokenFile(port)) // Written by the server when it started.
+    output match {
+      case Some(outputFile) => writeFileAtomically(Paths.get(outputFile))(Server.send(port, token, request, _))
+      case None             => Server.send(port, token, request, System.out)
+    }
   }
 
   def main(args: Array[String]): Unit = ParserForMethods(this).runOrExit(args)
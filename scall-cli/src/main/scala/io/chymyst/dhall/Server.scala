@@ -0,0 +1,226 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.Main.OutputMode
+import io.chymyst.dhall.Yaml.YamlOptions
+
+import java.io.{BufferedInputStream, BufferedOutputStream, ByteArrayInputStream, DataInputStream, DataOutputStream, InputStream, OutputStream}
+import java.net.{InetAddress, ServerSocket, Socket}
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.{PosixFileAttributeView, PosixFilePermissions}
+import java.nio.file.{Files, Path, Paths}
+import java.security.{MessageDigest, SecureRandom}
+import java.util.concurrent.{ExecutorService, Executors, ThreadFactory}
+import scala.util.{Try, Using}
+import scala.util.control.NonFatal
+
+/** A long-running process that evaluates Dhall files on request, so that JVM startup, class loading, and cache warm-up are paid only once.
+  *
+  * The server listens on a TCP port of the loopback interface. Each connection carries one request: the server's access token, an output mode (the same
+  * commands as in the command line), the path used for resolving relative imports, the YAML options, and the Dhall source. The server writes the same bytes
+  * that `Main.process` would write and then closes the connection. Requests are read with a timeout by a pool of reader threads, and then handled concurrently
+  * by a fixed pool of worker threads that share the global caches.
+  *
+  * Other users of the same machine can connect to the loopback interface, so each server generates a random access token when it starts. The command `serve`
+  * writes that token to a file readable only by the current user (see `tokenFile`), and the command `client` reads it from there. Requests without the right
+  * token are rejected.
+  *
+  * All requests are evaluated in the server process: `env:` imports read the environment variables of the server, not those of the client, and relative imports
+  * are resolved against the path given in the request.
+  */
+object Server {
+  val defaultPort = 7373
+
+  // Requests with a larger Dhall source are rejected before memory is allocated for them.
+  val maxInputBytes: Int = 64 * 1024 * 1024
+
+  // The time allowed for a client to send its request after connecting.
+  val defaultRequestTimeoutMillis: Int = 10000
+
+  /** A request to evaluate a Dhall source.
+    *
+    * @param command
+    *   One of the output mode commands: decode, encode, hash, text, type, json, yaml, toml; any other value means Dhall output.
+    * @param path
+    *   Path of the Dhall file, used for resolving relative imports. This should be an absolute path, since the server may run in a different directory.
+    * @param input
+    *   The Dhall source, or a CBOR-encoded expression for the `decode` command.
+    */
+  final case class Request(command: String, path: String, quoteAllStrings: Boolean, createDocuments: Boolean, indent: Int, input: Array[Byte]) {
+    def outputMode: OutputMode = Main.parseArgs(Array(command))
+
+    def options: YamlOptions = YamlOptions(quoteAllStrings, indent, createDocuments, jsonFormat = outputMode == OutputMode.Json)
+
+    def writeTo(output: DataOutputStream): Unit = {
+      output.writeUTF(command)
+      output.writeUTF(path)
+      output.writeBoolean(quoteAllStrings)
+      output.writeBoolean(createDocuments)
+      output.writeInt(indent)
+      output.writeInt(input.length)
+      output.write(input)
+      output.flush()
+    }
+  }
+
+  object Request {
+    def readFrom(input: DataInputStream): Request = {
+      val command         = input.readUTF()
+      val path            = input.readUTF()
+      val quoteAllStrings = input.readBoolean()
+      val createDocuments = input.readBoolean()
+      val indent          = input.readInt()
+      val length          = input.readInt()
+      if (length < 0 || length > maxInputBytes) throw new Exception(s"Invalid request: the input size $length is not between 0 and $maxInputBytes bytes")
+      val bytes           = new Array[Byte](length)
+      input.readFully(bytes)
+      Request(command, path, quoteAllStrings, createDocuments, indent, bytes)
+    }
+  }
+
+  /** A server that is accepting connections. Closing it stops accepting new connections; requests that are already running will complete.
+    *
+    * @param token
+    *   The access token that clients must send with each request.
+    */
+  final class Running private[Server] (serverSocket: ServerSocket, readers: ExecutorService, executor: ExecutorService, acceptor: Thread, val token: String)
+      extends AutoCloseable {
+    def port: Int = serverSocket.getLocalPort
+
+    // Block until the server is closed.
+    def await(): Unit = acceptor.join()
+
+    override def close(): Unit = {
+      serverSocket.close()
+      readers.shutdown()
+      executor.shutdown()
+    }
+  }
+
+  private def daemonThreadFactory(name: String): ThreadFactory = (runnable: Runnable) => {
+    val thread = new Thread(runnable, name)
+    thread.setDaemon(true)
+    thread
+  }
+
+  private val random = new SecureRandom
+
+  // A new random access token, as a hexadecimal string.
+  def newToken(): String = {
+    val bytes = new Array[Byte](32)
+    random.nextBytes(bytes)
+    bytes.map(b => "%02x".format(b & 0xff)).mkString
+  }
+
+  // The file where `serve` stores the access token of the server on the given port. It is in the user's Dhall cache directory.
+  def tokenFile(port: Int): Path = ImportResolution.dhallCacheRoots.toSeq.headOption match {
+    case Some(directory) => directory.resolve(s"server-$port.token")
+    case None            => throw new Exception("Cannot find a writable cache directory for the server access token")
+  }
+
+  // Replace the token file with a new file that only the current user can read, if the file system supports POSIX permissions.
+  def writeTokenFile(path: Path, token: String): Unit = {
+    Files.deleteIfExists(path)
+    if (Files.getFileStore(path.getParent).supportsFileAttributeView(classOf[PosixFileAttributeView]))
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+    else Files.createFile(path)
+    Files.write(path, token.getBytes(StandardCharsets.UTF_8))
+  }
+
+  def readTokenFile(path: Path): String = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim
+
+  /** Start accepting connections in background threads.
+    *
+    * @param port
+    *   The TCP port on the loopback interface, or 0 to choose any free port.
+    * @param threads
+    *   The maximum number of requests that are evaluated at the same time, and also the maximum number of requests that are read at the same time.
+    * @param context
+    *   The caches and the HTTP fetcher used for all requests. By default, those of the calling thread.
+    * @param token
+    *   The access token that clients must send.
+    * @param requestTimeoutMillis
+    *   The time allowed for reading a request. A connection that does not send its request in time is closed with an error message.
+    */
+  def start(
+    port: Int,
+    threads: Int = Runtime.getRuntime.availableProcessors,
+    context: EvaluationContext = EvaluationContext.capture(),
+    token: String = newToken(),
+    requestTimeoutMillis: Int = defaultRequestTimeoutMillis,
+  ): Running = {
+    val serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress)
+    val readers      = Executors.newFixedThreadPool(threads, daemonThreadFactory("dhall-server-reader"))
+    val executor     = Executors.newFixedThreadPool(threads, daemonThreadFactory("dhall-server-worker"))
+    val acceptor     = daemonThreadFactory("dhall-server").newThread { () =>
+      while (!serverSocket.isClosed) {
+        try {
+          val socket = serverSocket.accept()
+          socket.setSoTimeout(requestTimeoutMillis)
+          // A worker thread is used only after the whole request was read, so slow or idle connections cannot hold the workers.
+          readers.execute(() => readRequest(socket, token).foreach(request => executor.execute(() => context.run(handle(socket, request)))))
+        } catch {
+          case NonFatal(_) => // The server socket was closed, or the connection failed before it was accepted.
+        }
+      }
+    }
+    acceptor.start()
+    new Running(serverSocket, readers, executor, acceptor, token)
+  }
+
+  // $COVERAGE-OFF$
+  // Run a server until the process is terminated.
+  def serve(port: Int): Unit = {
+    val server = start(port)
+    writeTokenFile(tokenFile(server.port), server.token)
+    System.err.println(s"Dhall server is listening on ${InetAddress.getLoopbackAddress.getHostAddress}:${server.port}")
+    server.await()
+  }
+  // $COVERAGE-ON$
+
+  // Read the access token and the request. If that fails, write an error message and close the connection.
+  private def readRequest(socket: Socket, token: String): Option[Request] =
+    try {
+      val input = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+      if (!MessageDigest.isEqual(input.readUTF().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)))
+        throw new Exception("Invalid access token")
+      Some(Request.readFrom(input))
+    } catch {
+      case NonFatal(exception) =>
+        Try(Using.resource(socket)(s => respondWithError(s.getOutputStream, exception))) // The client may have closed the connection already.
+        None
+    }
+
+  private def respondWithError(output: OutputStream, exception: Throwable): Unit = {
+    output.write(s"Error: $exception\n".getBytes(StandardCharsets.UTF_8))
+    output.flush()
+  }
+
+  private def handle(connection: Socket, request: Request): Unit = Using.resource(connection) { socket =>
+    val output = new BufferedOutputStream(socket.getOutputStream)
+    try {
+      Main.process(Paths.get(request.path), new ByteArrayInputStream(request.input), output, request.outputMode, request.options)
+    } catch {
+      case NonFatal(exception) => respondWithError(output, exception)
+    }
+    output.flush()
+  }
+
+  // Send a request with the given access token to a server on the given port of the loopback interface, and copy the response to `output`.
+  def send(port: Int, token: String, request: Request, output: OutputStream): Unit =
+    Using.resource(new Socket(InetAddress.getLoopbackAddress, port)) { socket =>
+      val requestOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+      requestOutput.writeUTF(token)
+      request.writeTo(requestOutput)
+      copy(socket.getInputStream, output)
+      output.flush()
+    }
+
+  private def copy(input: InputStream, output: OutputStream): Unit = {
+    val buffer = new Array[Byte](8192)
+    var count  = input.read(buffer)
+    while (count >= 0) {
+      output.write(buffer, 0, count)
+      count = input.read(buffer)
+    }
+  }
+}
@@ -2,14 +2,20 @@ package io.chymyst.dhall.unit
 
 import com.eed3si9n.expecty.Expecty.expect
 import io.chymyst.dhall.Main.OutputMode
-import io.chymyst.dhall.Main
+import io.chymyst.dhall.{Batch, CBOR, Main, Server}
 import io.chymyst.dhall.Yaml.YamlOptions
 import io.chymyst.test.{ManyFixtures, ResourceFiles, TestTimings}
 import munit.FunSuite
 
-import java.io.{ByteArrayInputStream, ByteArrayOutputStream, FileInputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataOutputStream, FileInputStream}
+import java.net.{InetAddress, Socket}
+import java.nio.file.attribute.{PosixFileAttributeView, PosixFilePermissions}
 import java.nio.file.{Files, Paths}
-import scala.util.Try
+import scala.concurrent.duration.DurationInt
+import scala.concurrent.{Await, Future}
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.jdk.CollectionConverters.IteratorHasAsScala
+import scala.util.{Try, Using}
 
 class MainSpec extends FunSuite with TestTimings with ResourceFiles with ManyFixtures {
 
@@ -168,6 +174,124 @@ class MainSpec extends FunSuite with TestTimings with ResourceFiles with ManyFix
     expect(runMain("[ 1, 2, 3]", "toml") == "Error: Unsupported expression type for TOML export: [1, 2, 3], must be a record literal.\n")
   }
 
+  test("exporters write only an error message if a value cannot be converted, and output files are replaced atomically") {
+    expect(runMain("{ a = [ 1, 2 ], b = \\(x : Bool) -> x }", "yaml").startsWith("Error: Unsupported expression type for YAML export"))
+    expect(
+      runMain("{ a = [ 1, 2 ], b = { c = Natural } }", "toml") == "Error: Unsupported expression type for TOML export: Natural, must be a record literal.\n"
+    )
+
+    val target = Files.createTempDirectory("dhall-output").resolve("out.yaml")
+    Main.writeFileAtomically(target)(_.write("a: 1\n".getBytes("UTF-8")))
+    expect(Try(Main.writeFileAtomically(target) { output => output.write("partial".getBytes("UTF-8")); throw new Exception("failed") }).isFailure)
+    expect(new String(Files.readAllBytes(target), "UTF-8") == "a: 1\n", Files.list(target.getParent).count == 1L)
+  }
+
+  test("output files get default permissions when created and keep their permissions when replaced") {
+    val directory = Files.createTempDirectory("dhall-output")
+    assume(Files.getFileStore(directory).supportsFileAttributeView(classOf[PosixFileAttributeView]), "POSIX file permissions are not supported")
+    val reference = Files.write(directory.resolve("reference.txt"), Array[Byte]()) // Created with the default permissions.
+    val target    = directory.resolve("out.yaml")
+    Main.writeFileAtomically(target)(_.write("a: 1\n".getBytes("UTF-8")))
+    expect(Files.getPosixFilePermissions(target) == Files.getPosixFilePermissions(reference))
+
+    val permissions = PosixFilePermissions.fromString("rwxr-----")
+    Files.setPosixFilePermissions(target, permissions)
+    Main.writeFileAtomically(target)(_.write("a: 2\n".getBytes("UTF-8")))
+    expect(Files.getPosixFilePermissions(target) == permissions, new String(Files.readAllBytes(target), "UTF-8") == "a: 2\n")
+  }
+
+  test("server evaluates concurrent requests with the same output as Main.process") {
+    Using.resource(Server.start(port = 0)) { server =>
+      def request(input: String, command: String, path: String = Paths.get(".").toAbsolutePath.toString): Server.Request =
+        Server.Request(command, path, quoteAllStrings = false, createDocuments = false, Main.defaultIndent, input.getBytes("UTF-8"))
+      def send(input: String, command: String, path: String = Paths.get(".").toAbsolutePath.toString): String            = {
+        val output = new ByteArrayOutputStream()
+        Server.send(server.port, server.token, request(input, command, path), output)
+        new String(output.toByteArray, "UTF-8")
+      }
+      def process(input: String, command: String): String                                                                = { // The server uses the same YAML options as the command line, so `json` gives JSON format.
+        val output = new ByteArrayOutputStream()
+        val local  = request(input, command)
+        Main.process(Paths.get(local.path), new ByteArrayInputStream(local.input), output, local.outputMode, local.options)
+        new String(output.toByteArray, "UTF-8")
+      }
+      val requests                                                                                                       =
+        Seq("1 + 1 + 1" -> "", "{ a = [ 1, 2 ], b = \"x\" }" -> "yaml", "{ a = 1 }" -> "json", "{ a = 1 }" -> "toml", "3.14159" -> "type", "1 + True" -> "hash")
+      val results                                                                                                        = Await.result(Future.sequence((1 to 10).flatMap(_ => requests).map { case (input, command) => Future(send(input, command)) }), 30.seconds)
+      expect(results == (1 to 10).flatMap(_ => requests).map { case (input, command) => process(input, command) })
+
+      val directory = Files.createTempDirectory("dhall-server")
+      Files.write(directory.resolve("value.dhall"), "{ x = 1 }".getBytes("UTF-8"))
+      expect(send("(./value.dhall).x + 1", "", directory.resolve("main.dhall").toString) == "2\n")
+    }
+  }
+
+  test("server rejects requests with a wrong token, an invalid input size, or no data before the timeout") {
+    Using.resource(Server.start(port = 0, requestTimeoutMillis = 500)) { server =>
+      def exchange(write: DataOutputStream => Unit): String = Using.resource(new Socket(InetAddress.getLoopbackAddress, server.port)) { socket =>
+        val output = new DataOutputStream(socket.getOutputStream)
+        write(output)
+        output.flush()
+        new String(CBOR.java8ReadInputStreamToByteArray(socket.getInputStream), "UTF-8")
+      }
+      val request                                           = Server.Request(
+        "",
+        Paths.get("main.dhall").toAbsolutePath.toString,
+        quoteAllStrings = false,
+        createDocuments = false,
+        Main.defaultIndent,
+        "1 + 1".getBytes("UTF-8"),
+      )
+      expect(exchange { output => output.writeUTF(server.token); request.writeTo(output) } == "2\n")
+      expect(exchange(_.writeUTF("wrong")) contains "Invalid access token") // The server reads nothing after a wrong token.
+      expect(exchange { output => // A request header with an input size that is too large.
+        output.writeUTF(server.token)
+        Seq("", "/").foreach(output.writeUTF)
+        output.writeBoolean(false)
+        output.writeBoolean(false)
+        output.writeInt(Main.defaultIndent)
+        output.writeInt(Int.MaxValue)
+      } contains "Invalid request")
+      expect(exchange(_ => ()) contains "SocketTimeoutException")
+    }
+
+    val tokenFile = Files.createTempDirectory("dhall-server").resolve("server.token")
+    Server.writeTokenFile(tokenFile, "abc")
+    expect(Server.readTokenFile(tokenFile) == "abc")
+    if (Files.getFileStore(tokenFile).supportsFileAttributeView(classOf[PosixFileAttributeView]))
+      expect(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)) == "rw-------")
+  }
+
+  test("batch mode evaluates files matching a glob pattern or given by a list, and writes output only for files that succeed") {
+    val directory                                  = Files.createTempDirectory("dhall-batch")
+    def write(name: String, content: String): Unit = {
+      Files.createDirectories(directory.resolve(name).getParent)
+      Files.write(directory.resolve(name), content.getBytes("UTF-8"))
+    }
+    def read(path: java.nio.file.Path): String     = new String(Files.readAllBytes(path), "UTF-8")
+    write("shared.dhall", "{ port = 8080 }")
+    write("a.dhall", "{ name = \"a\", port = (./shared.dhall).port }")
+    write("sub/b.dhall", "{ name = \"b\", port = (../shared.dhall).port + 1 }")
+    write("sub/bad.dhall", "{ name = Natural }")
+
+    val outputDir = directory.resolve("out")
+    val jobs      = Batch.jobsFromGlob(s"$directory/**.dhall", Some(outputDir), OutputMode.Yaml)
+    expect(jobs.map(job => directory.relativize(job.input).toString).toSet == Set("a.dhall", "shared.dhall", "sub/b.dhall", "sub/bad.dhall"))
+    val results   = Batch.run(jobs, OutputMode.Yaml, YamlOptions())
+    expect(read(outputDir.resolve("a.yaml")) == "name: a\nport: 8080\n", read(outputDir.resolve("sub/b.yaml")) == "name: b\nport: 8081\n")
+    expect(results.filter(_.error.isDefined).map(_.job.input.getFileName.toString) == Seq("bad.dhall"), !Files.exists(outputDir.resolve("sub/bad.yaml")))
+    // The output of the failed job was streamed into a temporary file, which was deleted, and its error message was kept.
+    expect(Using.resource(Files.list(outputDir.resolve("sub")))(_.iterator.asScala.map(_.getFileName.toString).toList) == List("b.yaml"))
+    expect(results.flatMap(_.error).forall(_.nonEmpty))
+    expect(Batch.summary(results, 1000000L).linesIterator.toSeq.last == "Processed 4 files (1 failed) in 1.0 ms")
+
+    write("jobs.txt", s"# input and output\n${directory.resolve("a.dhall")}\t${directory.resolve("a.json")}\n")
+    val listed = Batch.jobsFromList(directory.resolve("jobs.txt"))
+    expect(listed == Seq(Batch.Job(directory.resolve("a.dhall"), directory.resolve("a.json"))))
+    expect(Batch.run(listed, OutputMode.Json, YamlOptions(jsonFormat = true)).forall(_.error.isEmpty))
+    expect(read(directory.resolve("a.json")).startsWith("{"))
+  }
+
   test("parse command-line argument") {
     import OutputMode._
     Seq(
@@ -1,6 +1,7 @@
 package io.chymyst.dhall.unit
 
 import com.eed3si9n.expecty.Expecty.expect
+import io.chymyst.dhall.Syntax.Expression
 import io.chymyst.dhall.{Main, Parser}
 import io.chymyst.dhall.Main.OutputMode
 import io.chymyst.dhall.Yaml.YamlOptions
@@ -9,6 +10,7 @@ import munit.FunSuite
 
 import java.io.{ByteArrayOutputStream, FileInputStream}
 import java.nio.file.{Files, Paths}
+import scala.collection.mutable
 
 class PerfTest extends FunSuite with ResourceFiles with TestTimings {
 
@@ -60,6 +62,23 @@ class PerfTest extends FunSuite with ResourceFiles with TestTimings {
     expect(elapsed / 1e9 < 0.5)
   }
 
+  test("cache lookup cost for large expressions with cached hash codes") {
+    val file                   = resourceAsFile("yaml-perftest/create_yaml.dhall").get
+    val expr                   = Parser.parseDhallStream(new FileInputStream(file)).get.value.value.resolveImports(file.toPath)
+    val normalized             = expr.betaNormalized
+    val (_, elapsedFirstHash)  = elapsedNanos(expr.hashCode)
+    val (_, elapsedSecondHash) = elapsedNanos(expr.hashCode)
+    val lookups                = 100000
+    val cache                  = new mutable.HashMap[Expression, Expression]
+    cache.put(expr, normalized)
+    val (_, elapsedLookups)    = elapsedNanos((1 to lookups).foreach(_ => cache.get(expr)))
+    println(
+      s"Expression with ${expr.exprCount} subexpressions: first hashCode took ${elapsedFirstHash / 1e9} seconds, second hashCode took ${elapsedSecondHash / 1e9} seconds, $lookups cache lookups took ${elapsedLookups / 1e9} seconds"
+    )
+    expect(cache.get(expr).contains(normalized))
+    expect(elapsedLookups / 1e9 < 1.0)
+  }
+
   test("parse nested parentheses") {
     val n            = 30 // More than 30 gives stack overflow.
     val input        = "(" * n + "1" + ")" * n
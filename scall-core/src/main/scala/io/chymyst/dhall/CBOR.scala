@@ -309,14 +309,14 @@ object CBORmodel {
 
   def decodeCbor2(bytes: Array[Byte]): CBORmodel = fromCbor2(CBORObject.DecodeFromBytes(bytes))
 
-  def decodeCbor1(bytes: Array[Byte]): CBORmodel = {
-    val bais = new ByteArrayInputStream(bytes)
-    new CborDecoder(bais).decode.asScala.toList match {
+  def decodeCbor1(bytes: Array[Byte]): CBORmodel = decodeCbor1(new ByteArrayInputStream(bytes))
+
+  def decodeCbor1(input: InputStream): CBORmodel =
+    new CborDecoder(input).decode.asScala.toList match {
       case head :: Nil  => fromCbor1(head)
       case head :: tail => ().die(s"Invalid sequence of CBOR objects, $tail, after the first CBOR1 object, $head")
       case Nil          => ().die(s"Invalid null byte stream for decoding CBOR1")
     }
-  }
 
   def fromCbor1(dataItem: DataItem): CBORmodel = {
     val model = dataItem.getMajorType match {
@@ -0,0 +1,91 @@
+package io.chymyst.dhall
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.ObjectName
+
+/** A snapshot of the metrics of an `ObservedCache`.
+  *
+  * @param name
+  *   Name of the cache.
+  * @param requests
+  *   Total number of calls to `getOrElseUpdate`.
+  * @param hits
+  *   Number of requests answered without computing a value, including requests that waited for another thread to compute the same value.
+  * @param misses
+  *   Number of times a value was computed.
+  * @param evictions
+  *   Number of entries that were evicted or not admitted into the cache.
+  * @param inFlight
+  *   Number of values being computed right now.
+  * @param computedWeight
+  *   Total weight of all computed entries. Entries of caches without a weight limit have weight 1.
+  * @param computeNanos
+  *   Total time spent computing missing values, in nanoseconds. This includes the time of any nested cached computations.
+  * @param size
+  *   Number of entries currently in the cache.
+  */
+final case class CacheMetrics(
+  name: String,
+  requests: Long,
+  hits: Long,
+  misses: Long,
+  evictions: Long,
+  inFlight: Int,
+  computedWeight: Long,
+  computeNanos: Long,
+  size: Int,
+) {
+  def hitRatio: Double = if (requests > 0) hits.toDouble / requests.toDouble else 0.0
+
+  def meanComputedEntryWeight: Double = if (misses > 0) computedWeight.toDouble / misses.toDouble else 0.0
+}
+
+// The JMX view of `CacheMetrics`. The getters are read when a JMX client asks for attribute values.
+trait CacheMetricsMXBean {
+  def getName: String
+  def getRequests: Long
+  def getHits: Long
+  def getMisses: Long
+  def getEvictions: Long
+  def getInFlight: Int
+  def getHitRatio: Double
+  def getMeanComputedEntryWeight: Double
+  def getComputeSeconds: Double
+  def getSize: Int
+}
+
+object CacheMetrics {
+  private final class MBean(cache: ObservedCache[_, _]) extends CacheMetricsMXBean {
+    override def getName: String                    = cache.name
+    override def getRequests: Long                  = cache.metrics.requests
+    override def getHits: Long                      = cache.metrics.hits
+    override def getMisses: Long                    = cache.metrics.misses
+    override def getEvictions: Long                 = cache.metrics.evictions
+    override def getInFlight: Int                   = cache.metrics.inFlight
+    override def getHitRatio: Double                = cache.metrics.hitRatio
+    override def getMeanComputedEntryWeight: Double = cache.metrics.meanComputedEntryWeight
+    override def getComputeSeconds: Double          = cache.metrics.computeNanos / 1e9
+    override def getSize: Int                       = cache.metrics.size
+  }
+
+  private val registrationCounter = new AtomicLong(0L)
+
+  /** Register the metrics of a cache with the platform MBean server, under the domain `io.chymyst.dhall` and the type `Cache`.
+    *
+    * @return
+    *   A handle that unregisters the MBean when closed. Registered caches are not garbage-collected until they are unregistered.
+    */
+  def registerMBean(cache: ObservedCache[_, _]): AutoCloseable = {
+    val server     = ManagementFactory.getPlatformMBeanServer
+    val objectName = new ObjectName(s"io.chymyst.dhall:type=Cache,name=${ObjectName.quote(cache.name)},id=${registrationCounter.incrementAndGet()}")
+    server.registerMBean(new MBean(cache), objectName)
+    () => if (server.isRegistered(objectName)) server.unregisterMBean(objectName)
+  }
+
+  // Register the metrics of all the given caches. The returned handle unregisters all of them.
+  def registerMBeans(caches: AllCaches): AutoCloseable = {
+    val handles = Seq(caches.alpha, caches.beta, caches.gamma).map(registerMBean)
+    () => handles.foreach(_.close())
+  }
+}
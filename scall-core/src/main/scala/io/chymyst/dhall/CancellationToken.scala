@@ -0,0 +1,35 @@
+package io.chymyst.dhall
+
+import java.util.concurrent.CancellationException
+
+/** A flag that asks a running evaluation to stop. Import resolution, type-checking, and beta-normalization check the current token and throw a
+  * `CancellationException` after the token was cancelled. An operation that is blocked (for example, while reading a remote import) stops after it unblocks.
+  *
+  * @param parent
+  *   If given, this token is also cancelled when the parent token is cancelled. This is used to stop one part of an evaluation without stopping the rest.
+  */
+final class CancellationToken(parent: Option[CancellationToken] = None) {
+  @volatile private var reason: Option[String] = None
+
+  def cancel(message: String = "Dhall evaluation was cancelled"): Unit = if (reason.isEmpty) reason = Some(message)
+
+  private def cancellationReason: Option[String] = reason orElse parent.flatMap(_.cancellationReason)
+
+  def isCancelled: Boolean = cancellationReason.isDefined
+
+  def throwIfCancelled(): Unit = cancellationReason.foreach(message => throw new CancellationException(message))
+}
+
+object CancellationToken {
+  private val currentToken = new ScopedThreadLocal[CancellationToken]
+
+  def current: Option[CancellationToken] = currentToken.value
+
+  def checkCurrent(): Unit = currentToken.value match {
+    case Some(token) => token.throwIfCancelled()
+    case None        =>
+  }
+
+  // Run a computation that can be cancelled with the given token in the current thread.
+  def withToken[R](token: Option[CancellationToken])(computation: => R): R = currentToken.withValue(token)(computation)
+}
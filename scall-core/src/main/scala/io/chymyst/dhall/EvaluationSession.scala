@@ -0,0 +1,132 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.Parser.StringAsDhallExpression
+import io.chymyst.dhall.Syntax.Expression
+
+import java.nio.file.{Path, Paths}
+import java.util.concurrent.{CompletableFuture, ExecutorService, Executors, ScheduledExecutorService, ThreadFactory, TimeUnit, TimeoutException}
+import java.util.function.BiConsumer
+import scala.concurrent.duration.FiniteDuration
+import scala.util.Try
+
+/** A sequence of Dhall evaluations that share a given set of caches.
+  *
+  * All steps (parsing, import resolution, type-checking, and normalization) run with `caches` as the current caches, so that evaluations in different sessions
+  * do not see each other's cached results. The cached data is freed when the session is no longer referenced. Use `EvaluationSession.shared` to work with the
+  * process-wide caches.
+  *
+  * Only the caches in `AllCaches` belong to a session. The following are shared by all sessions in the process: the expression interner (it holds weak
+  * references to immutable expressions, so it cannot make results of one session visible to another), `ResolvedImportCache.shared` (resolved local imports,
+  * checked against the current state of the files), `FrozenImportCache.shared` (imports whose `sha256` digest was verified), and the on-disk caches.
+  *
+  * Example:
+  * {{{
+  *   val session = EvaluationSession.isolated()
+  *   val result  = session.evaluate("let x = 1 in x + 1")
+  * }}}
+  */
+final class EvaluationSession(val caches: AllCaches) {
+  // Run any computation with the caches of this session.
+  def run[R](computation: => R): R = AllCaches.withCaches(caches)(computation)
+
+  def parse(source: String): Expression = run(source.dhall)
+
+  def resolveImports(expr: Expression, currentFile: Path = Paths.get("."), enableCache: Boolean = true): Expression =
+    run(expr.resolveImports(currentFile, enableCache))
+
+  def inferType(expr: Expression): TypecheckResult[Expression] = run(expr.inferType)
+
+  def typeCheckAndBetaNormalize(expr: Expression): TypecheckResult[Expression] = run(expr.typeCheckAndBetaNormalize())
+
+  def betaNormalize(expr: Expression): Expression = run(expr.betaNormalized)
+
+  // Parse, resolve imports, type-check, and beta-normalize the given Dhall source.
+  def evaluate(source: String, currentFile: Path = Paths.get(".")): TypecheckResult[Expression] = run {
+    source.dhall.resolveImports(currentFile).typeCheckAndBetaNormalize()
+  }
+
+  /** Run a computation with the caches of this session in a background thread, without blocking the calling thread. The computation uses the HTTP fetcher of
+    * the calling thread.
+    *
+    * The computation runs on a virtual thread if the JVM supports them, so that a thread blocked on reading a remote import does not hold an operating system
+    * thread. Cancelling the returned future or reaching the timeout completes the future immediately, and the computation stops at its next cancellation check
+    * (see `CancellationToken`).
+    *
+    * @param timeout
+    *   If given, the future fails with a `TimeoutException` after this time.
+    */
+  def runAsync[R](timeout: Option[FiniteDuration] = None)(computation: => R): CompletableFuture[R] = {
+    val token   = new CancellationToken
+    val context = EvaluationContext(caches, HttpFetcher.current, Some(token))
+    val future  = new CompletableFuture[R] {
+      override def cancel(mayInterruptIfRunning: Boolean): Boolean = {
+        token.cancel()
+        super.cancel(mayInterruptIfRunning)
+      }
+    }
+    timeout.foreach { duration =>
+      val deadline = EvaluationSession.timer.schedule(
+        new Runnable {
+          override def run(): Unit =
+            if (future.completeExceptionally(new TimeoutException(s"Dhall evaluation did not finish within $duration")))
+              token.cancel(s"Dhall evaluation did not finish within $duration")
+        },
+        duration.toNanos,
+        TimeUnit.NANOSECONDS,
+      )
+      future.whenComplete(new BiConsumer[R, Throwable] {
+        override def accept(result: R, error: Throwable): Unit = deadline.cancel(false)
+      })
+    }
+    EvaluationSession.asyncExecutor.execute { () =>
+      try future.complete(context.run(computation))
+      catch { case t: Throwable => future.completeExceptionally(t) }
+    }
+    future
+  }
+
+  // Parse, resolve imports, type-check, and beta-normalize the given Dhall source asynchronously. The future fails if the expression is not well-typed.
+  def evaluateAsync(source: String, currentFile: Path = Paths.get("."), timeout: Option[FiniteDuration] = None): CompletableFuture[Expression] =
+    runAsync(timeout)(evaluate(source, currentFile).unsafeGet)
+
+  def statistics: String = caches.statistics
+}
+
+object EvaluationSession {
+  private def daemonThreadFactory(name: String): ThreadFactory = (runnable: Runnable) => {
+    val thread = new Thread(runnable, name)
+    thread.setDaemon(true)
+    thread
+  }
+
+  // Use virtual threads on Java 21 and later. We use reflection because this code must also run on older JVMs.
+  private lazy val asyncExecutor: ExecutorService =
+    Try(classOf[Executors].getMethod("newVirtualThreadPerTaskExecutor").invoke(null).asInstanceOf[ExecutorService])
+      .getOrElse(Executors.newCachedThreadPool(daemonThreadFactory("dhall-evaluation")))
+
+  private lazy val timer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("dhall-evaluation-timer"))
+
+  lazy val shared: EvaluationSession = new EvaluationSession(AllCaches.shared)
+
+  // A session with its own new caches of the given sizes. A negative size means no limit.
+  def isolated(
+    alphaCacheSize: Int = 100000,
+    betaCacheSize: Int = 100000,
+    gammaCacheSize: Int = 100000,
+    maxNormalFormsWeight: Long = Semantics.maxCacheWeight / 4,
+  ): EvaluationSession = new EvaluationSession(AllCaches(alphaCacheSize, betaCacheSize, gammaCacheSize, maxNormalFormsWeight))
+}
+
+/** The per-thread state of a Dhall evaluation: the current caches, HTTP fetcher, and cancellation token.
+  *
+  * This state is not inherited by new threads (see `ScopedThreadLocal`). Code that runs parts of an evaluation on a thread pool captures the context in the
+  * submitting thread and runs each task with `run`.
+  */
+final case class EvaluationContext(caches: AllCaches, fetcher: HttpFetcher, token: Option[CancellationToken]) {
+  def run[R](computation: => R): R = AllCaches.withCaches(caches)(HttpFetcher.withFetcher(fetcher)(CancellationToken.withToken(token)(computation)))
+}
+
+object EvaluationContext {
+  // The context of the current thread.
+  def capture(): EvaluationContext = EvaluationContext(AllCaches.current, HttpFetcher.current, CancellationToken.current)
+}
@@ -0,0 +1,82 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.FrozenImportCache.Entry
+import io.chymyst.dhall.Semantics.{BetaNormalizingOptions, ExprWithOptions}
+import io.chymyst.dhall.Syntax.Expression
+
+import java.util.concurrent.atomic.AtomicLong
+
+/** An in-memory tier of the semantic hash cache for frozen imports (imports with a `sha256:` digest).
+  *
+  * Each entry holds the alpha-normalized and beta-normalized form of an expression whose hash was already verified, together with its inferred type. This is
+  * the same expression that is stored in the semantic hash cache. A hit skips reading the cache file, decoding CBOR, computing the hash, and type-checking.
+  * Instead, the type and the normal forms are stored in the current caches, so that type-checking and normalizing a program that contains the imported
+  * expression does not do that work again.
+  *
+  * This class is thread-safe.
+  */
+final class FrozenImportCache(maxSize: Int) {
+  private val entries = LRUCache[String, Entry](maxSize)
+
+  private val hitCount = new AtomicLong(0L)
+
+  def hits: Long = hitCount.get
+
+  def size: Int = entries.synchronized(entries.size)
+
+  // Look up a digest given as a hex string. On a hit, the type and the normal forms of the expression are added to the current caches.
+  def get(digestHex: String): Option[Expression] = entries.synchronized(entries.get(digestHex.toLowerCase)).map { entry =>
+    hitCount.incrementAndGet()
+    entry.addToCurrentCaches()
+    entry.expr
+  }
+
+  // Whether `expr` is known to have the given digest, so that its hash does not need to be computed again.
+  def isVerified(digestHex: String, expr: Expression): Boolean =
+    entries.synchronized(entries.get(digestHex.toLowerCase)).exists(entry => (entry.expr eq expr) || entry.expr == expr)
+
+  /** Store a verified normal form. The caller must make sure that `normalForm` is alpha-normalized and beta-normalized and has the given digest. Expressions
+    * that fail to type-check are not stored.
+    *
+    * @param knownType
+    *   The type of `normalForm`, if the caller has already inferred it. Otherwise, the type is inferred here.
+    */
+  def put(digestHex: String, normalForm: Expression, knownType: Option[Expression]): Unit = {
+    val typeOfNormalForm = knownType match {
+      case Some(tpe) => TypecheckResult.Valid(tpe)
+      case None      => normalForm.inferType
+    }
+    typeOfNormalForm match {
+      case TypecheckResult.Valid(tpe) =>
+        val entry = Entry(normalForm, tpe)
+        entries.synchronized(entries.update(digestHex.toLowerCase, entry))
+        entry.addToCurrentCaches()
+      case TypecheckResult.Invalid(_) =>
+    }
+  }
+
+  def invalidateAll(): Unit = entries.synchronized(entries.clear())
+}
+
+object FrozenImportCache {
+
+  /** A frozen import whose hash was verified.
+    *
+    * @param expr
+    *   The alpha-normalized and beta-normalized expression.
+    * @param tpe
+    *   The inferred type of `expr`.
+    */
+  final case class Entry(expr: Expression, tpe: Expression) {
+    def addToCurrentCaches(): Unit = {
+      TypeCheck.cacheTypeCheck.getOrElseUpdate((TypeCheck.emptyContext, expr.scheme), TypecheckResult.Valid(tpe))
+      Semantics.cacheAlphaNormalize.getOrElseUpdate(expr, expr)
+      val key = ExprWithOptions(expr, BetaNormalizingOptions.default)
+      Semantics.cacheBetaNormalize.getOrElseUpdate(key, key)
+    }
+  }
+
+  // The cache used by `resolveImports` when caching is enabled. It is shared by all evaluation sessions: entries are keyed by a verified `sha256` digest, so
+  // they are valid for every session. A hit stores the type in the caches of the session that is current at that time.
+  lazy val shared: FrozenImportCache = new FrozenImportCache(maxSize = 10000)
+}
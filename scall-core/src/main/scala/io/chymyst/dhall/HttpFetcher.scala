@@ -0,0 +1,177 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.HttpFetcher.{CachedResponse, Response}
+
+import java.io.{InputStream, OutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.Properties
+import scala.util.{Try, Using}
+
+/** Fetch remote imports over HTTP, with an optional on-disk cache of responses.
+  *
+  * Cached responses are used according to their `Cache-Control` (`no-store`, `no-cache`, `max-age`) and `Expires` headers. A stale cached response is
+  * revalidated with a conditional request (`If-None-Match` or `If-Modified-Since`), so that an unchanged import is not downloaded again. Connections are kept
+  * alive and reused for requests to the same origin.
+  *
+  * The cache is shared by all users of the cache directory, so responses to requests with an `Authorization` header and responses marked `Cache-Control:
+  * private` or `no-store` are never written to disk, and requests with an `Authorization` header never use cached responses.
+  *
+  * In offline mode, only cached responses are used, even if they are stale, and no network requests are made.
+  *
+  * @param cacheDirectory
+  *   Directory for cached responses, or `None` to disable caching.
+  * @param offline
+  *   If true, never make network requests.
+  * @param currentTimeMillis
+  *   The clock used to decide whether a cached response is fresh.
+  */
+final class HttpFetcher(val cacheDirectory: Option[Path], val offline: Boolean = false, currentTimeMillis: () => Long = () => System.currentTimeMillis()) {
+
+  def get(url: String, headers: Iterable[(String, String)]): Response = {
+    val key       = HttpFetcher.cacheKey(url, headers)
+    val directory = cacheDirectory.filterNot(_ => headers.exists { case (name, _) => name.equalsIgnoreCase("authorization") })
+    val cached    = directory.flatMap(readCached(_, key))
+    val now       = currentTimeMillis()
+    cached match {
+      case Some(entry) if offline || entry.isFresh(now) => entry.response
+      case _ if offline                                 => throw new Exception(s"Offline mode: no cached response for $url")
+      case _                                            =>
+        val conditionalHeaders = cached.toSeq.flatMap(entry => entry.etag.map("If-None-Match" -> _) ++ entry.lastModified.map("If-Modified-Since" -> _))
+        val response           =
+          if (conditionalHeaders.isEmpty) requests.get(url, headers = headers, check = false)
+          else {
+            // `requests` treats every 3xx status as a redirect and fails on 304 Not Modified, which has no `Location` header. So a conditional request does
+            // not follow redirects. If it is redirected, the request is repeated without the conditional headers.
+            val conditional = requests.get(url, headers = headers ++ conditionalHeaders, check = false, maxRedirects = 0)
+            if (conditional.statusCode / 100 == 3 && conditional.statusCode != 304) requests.get(url, headers = headers, check = false) else conditional
+          }
+        (response.statusCode, cached) match {
+          case (304, Some(entry))                     =>
+            // The cached body is still valid. The new headers may change the freshness of the cached response.
+            val updated = entry.revalidated(response.headers, now)
+            directory.foreach(writeCached(_, key, updated, body = None))
+            updated.response
+          case (code, _) if code >= 200 && code < 300 =>
+            val fetched = Response(code, response.headers, response.bytes, fromCache = false)
+            val control = HttpFetcher.cacheControl(response.headers)
+            if (!control.contains("no-store") && !control.contains("private"))
+              directory.foreach(writeCached(_, key, CachedResponse.of(fetched, now), body = Some(fetched.bytes)))
+            fetched
+          case (code, _)                              => throw new Exception(s"HTTP request to $url failed with status $code ${response.statusMessage}")
+        }
+    }
+  }
+
+  private def readCached(directory: Path, key: String): Option[CachedResponse] = Try {
+    val properties = new Properties
+    Using.resource(Files.newInputStream(directory.resolve(key + ".meta")))((input: InputStream) => properties.load(input))
+    CachedResponse.fromProperties(properties, Files.readAllBytes(directory.resolve(key + ".body")))
+  }.toOption
+
+  // Write to temporary files and then rename them, so that concurrent readers never see partially written files. The body is written before the metadata.
+  private def writeCached(directory: Path, key: String, entry: CachedResponse, body: Option[Array[Byte]]): Unit = Try {
+    Files.createDirectories(directory)
+    def replace(name: String)(write: Path => Unit): Unit = {
+      val temporary = Files.createTempFile(directory, name, ".tmp")
+      try {
+        write(temporary)
+        Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } finally Files.deleteIfExists(temporary)
+    }
+    body.foreach(bytes => replace(key + ".body")(Files.write(_, bytes)))
+    replace(key + ".meta") { path =>
+      Using.resource(Files.newOutputStream(path))((output: OutputStream) => entry.toProperties.store(output, null))
+    }
+  } // Failing to write the cache is not an error.
+}
+
+object HttpFetcher {
+  final case class Response(statusCode: Int, headers: Map[String, Seq[String]], bytes: Array[Byte], fromCache: Boolean)
+
+  // Metadata of a cached response. Header names are in lower case.
+  private final case class CachedResponse(
+    statusCode: Int,
+    headers: Map[String, Seq[String]],
+    body: Array[Byte],
+    storedAtMillis: Long,
+    maxAgeMillis: Option[Long],
+    noCache: Boolean,
+  ) {
+    def etag: Option[String] = headers.get("etag").flatMap(_.headOption)
+
+    def lastModified: Option[String] = headers.get("last-modified").flatMap(_.headOption)
+
+    def isFresh(now: Long): Boolean = !noCache && maxAgeMillis.exists(now - storedAtMillis < _)
+
+    def response: Response = Response(statusCode, headers, body, fromCache = true)
+
+    def revalidated(newHeaders: Map[String, Seq[String]], now: Long): CachedResponse =
+      CachedResponse.of(Response(statusCode, headers ++ newHeaders.map { case (k, v) => (k.toLowerCase, v) }, body, fromCache = true), now)
+
+    def toProperties: Properties = {
+      val properties = new Properties
+      properties.setProperty("statusCode", statusCode.toString)
+      properties.setProperty("storedAtMillis", storedAtMillis.toString)
+      maxAgeMillis.foreach(m => properties.setProperty("maxAgeMillis", m.toString))
+      properties.setProperty("noCache", noCache.toString)
+      headers.toSeq.flatMap { case (name, values) => values.map((name, _)) }.zipWithIndex.foreach { case ((name, value), index) =>
+        properties.setProperty(s"header.$index.name", name)
+        properties.setProperty(s"header.$index.value", value)
+      }
+      properties
+    }
+  }
+
+  private object CachedResponse {
+    def of(response: Response, now: Long): CachedResponse = {
+      val headers = response.headers.map { case (k, v) => (k.toLowerCase, v) }
+      val control = cacheControl(headers)
+      val maxAge  = control
+        .collectFirst { case d if d.startsWith("max-age=") => Try(d.drop("max-age=".length).toLong * 1000L).toOption }.flatten
+        .orElse(headers.get("expires").flatMap(_.headOption).flatMap(parseDate).map(_ - now))
+      CachedResponse(response.statusCode, headers, response.bytes, now, maxAge, noCache = control.contains("no-cache"))
+    }
+
+    def fromProperties(properties: Properties, body: Array[Byte]): CachedResponse = {
+      val headerPairs =
+        Iterator.from(0).map(i => (properties.getProperty(s"header.$i.name"), properties.getProperty(s"header.$i.value"))).takeWhile(_._1 != null)
+      CachedResponse(
+        properties.getProperty("statusCode").toInt,
+        headerPairs.toSeq.groupBy(_._1).map { case (name, pairs) => (name, pairs.map(_._2)) },
+        body,
+        properties.getProperty("storedAtMillis").toLong,
+        Option(properties.getProperty("maxAgeMillis")).map(_.toLong),
+        properties.getProperty("noCache").toBoolean,
+      )
+    }
+  }
+
+  // The directives of the `Cache-Control` header, in lower case.
+  private def cacheControl(headers: Map[String, Seq[String]]): Seq[String] =
+    headers.collect { case (name, values) if name.equalsIgnoreCase("cache-control") => values }.flatten.flatMap(_.split(",")).map(_.trim.toLowerCase).toSeq
+
+  private def parseDate(date: String): Option[Long] = Try(ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant.toEpochMilli).toOption
+
+  // Responses are cached separately for each URL and each set of request headers.
+  private def cacheKey(url: String, headers: Iterable[(String, String)]): String =
+    Semantics.computeHash((url +: headers.toSeq.sorted.map { case (k, v) => s"${k.toLowerCase}: $v" }).mkString("\n").getBytes(StandardCharsets.UTF_8))
+
+  // Offline mode is enabled by setting the environment variable `DHALL_OFFLINE` to any value other than an empty string, "0", or "false".
+  def default: HttpFetcher = new HttpFetcher(
+    ImportResolution.dhallCacheRoots.map(_.resolve("http")).toSeq.headOption,
+    offline = sys.env.get("DHALL_OFFLINE").exists(value => value.nonEmpty && value != "0" && !value.equalsIgnoreCase("false")),
+  )
+
+  // The fetcher used by computations that did not choose their own fetcher.
+  lazy val shared: HttpFetcher = default
+
+  private val currentFetcher = new ScopedThreadLocal[HttpFetcher]
+
+  def current: HttpFetcher = currentFetcher.value.getOrElse(shared)
+
+  // Run a computation using the given fetcher for remote imports in the current thread.
+  def withFetcher[R](fetcher: HttpFetcher)(computation: => R): R = currentFetcher.withValue(Some(fetcher))(computation)
+}
@@ -6,6 +6,7 @@ import io.chymyst.dhall.CBORmodel.CBytes
 import io.chymyst.dhall.ImportResolution.ImportContext
 import io.chymyst.dhall.ImportResolutionResult._
 import io.chymyst.dhall.Parser.StringAsDhallExpression
+import io.chymyst.dhall.ResolvedImportCache.FileStamp
 import io.chymyst.dhall.Syntax.ExpressionScheme._
 import io.chymyst.dhall.Syntax.{DhallFile, Expression}
 import io.chymyst.dhall.SyntaxConstants.FilePrefix.Here
@@ -18,6 +19,7 @@ import io.chymyst.tc.Applicative
 import java.nio.file
 import java.nio.file.{Files, Paths}
 import java.time.LocalDateTime
+import java.util.concurrent.{CancellationException, ForkJoinPool, ForkJoinWorkerThread, RecursiveTask}
 import scala.util.{Failure, Success, Try}
 import sourcecode.{File => SourceFile, Line => SourceLine}
 
@@ -75,8 +77,22 @@ object ImportResolution {
 
   lazy val emptyHeadersForHost: Iterable[(String, String)] = Seq()
 
+  // Read from the cache store if the cache directory has one, and otherwise from the standard layout with one file per digest.
   private def readCached(cacheRoot: java.nio.file.Path, digest: BytesLiteral): Try[Expression] = {
-    val digestHex  = digest.hex.toLowerCase
+    val digestHex = digest.hex.toLowerCase
+    SemanticHashStore.existing(cacheRoot).flatMap(_.get(digestHex)) match {
+      case Some(payload) =>
+        for {
+          ourHash <- Try(Semantics.computeHash(payload))
+          _       <- if (ourHash == digestHex) Success(())
+                     else Failure(new Exception(s"SHA256 mismatch: cached in ${SemanticHashStore.fileName} at $cacheRoot has a different hash ($ourHash)"))
+          expr    <- Try(CBORmodel.decodeCbor1(SemanticHashStore.inputStream(payload)).toScheme: Expression)
+        } yield expr
+      case None          => readCachedFile(cacheRoot, digestHex)
+    }
+  }
+
+  private def readCachedFile(cacheRoot: java.nio.file.Path, digestHex: String): Try[Expression] = {
     val cachedPath = cacheRoot.resolve("1220" + digestHex)
     for {
       bytes   <- Try(Files.readAllBytes(cachedPath))
@@ -89,7 +105,7 @@ object ImportResolution {
 
   private def readFirstCached(digest: BytesLiteral): Option[Expression] =
     dhallCacheRoots
-      .map(readCached(_, digest))
+      .map(cacheRoot => blockingRead(readCached(cacheRoot, digest)))
       .map { t =>
         if (t.isFailure && t.failed.get.getMessage.contains("SHA256 mismatch")) println(s"Warning: failure reading from cache: ${t.failed.get}")
         t
@@ -97,18 +113,39 @@ object ImportResolution {
       .filter(_.isSuccess)
       .take(1).map(_.toOption).headOption.flatten // Force evaluation of the first valid operation over all candidate cache roots.
 
-  private def validateHashAndCacheResolved(expr: Expression, digest: Option[BytesLiteral], enableCache: Boolean): ImportResolutionResult[Expression] =
+  // Look up a frozen import in memory first. Expressions read from the semantic hash cache are alpha-normalized and beta-normalized.
+  private def readFirstCachedFrozen(digest: BytesLiteral): Option[Expression] =
+    FrozenImportCache.shared
+      .get(digest.hex).orElse(readFirstCached(digest).map { expr =>
+        FrozenImportCache.shared.put(digest.hex, expr, knownType = None)
+        expr
+      })
+
+  // The frozen import cache stores the normal form of `expr`. If the type of `expr` is already known, the normal form has the same type.
+  private def validateHashAndCacheResolved(
+    expr: Expression,
+    digest: Option[BytesLiteral],
+    enableCache: Boolean,
+    knownType: Option[Expression],
+  ): ImportResolutionResult[Expression] =
     digest match {
       case None => Resolved(expr)
 
+      case Some(BytesLiteral(hex)) if FrozenImportCache.shared.isVerified(hex, expr) => Resolved(expr)
+
       case Some(BytesLiteral(hex)) =>
-        val ourBytes = expr.alphaNormalized.betaNormalized.toCBORmodel.encodeCbor2
-        val ourHash  = Semantics.computeHash(ourBytes).toLowerCase
+        val normalForm = expr.alphaNormalized.betaNormalized
+        val ourBytes   = normalForm.toCBORmodel.encodeCbor2
+        val ourHash    = Semantics.computeHash(ourBytes).toLowerCase
         if (hex.toLowerCase == ourHash) {
+          if (enableCache) FrozenImportCache.shared.put(ourHash, normalForm, knownType)
           dhallCacheRoots
             .filter(_ => enableCache)
             .map { cachePath =>
-              Try(Files.write(cachePath.resolve("1220" + ourHash), ourBytes))
+              SemanticHashStore.existing(cachePath) match {
+                case Some(store) => Try(store.put(ourHash, ourBytes))
+                case None        => Try(Files.write(cachePath.resolve("1220" + ourHash), ourBytes))
+              }
               // TODO: log errors while writing the cache file
               // TODO verify that we will attempt to read the cached file from any of the locations, not just from the first one.
             }.filter(_.isSuccess)
@@ -128,7 +165,7 @@ object ImportResolution {
     if (Files.isReadable(path) && Files.isWritable(path)) path else throw new Exception(s"Path $path is not readable or not writable")
   }
 
-  private def dhallCacheRoots: Iterator[java.nio.file.Path] = Seq(
+  private[dhall] def dhallCacheRoots: Iterator[java.nio.file.Path] = Seq(
     Try(Paths.get(scala.sys.env("XDG_CACHE_HOME")).resolve("dhall")),
     Try(
       if (isWindowsOS) Paths.get(scala.sys.env("LOCALAPPDATA")).resolve("dhall")
@@ -163,6 +200,117 @@ object ImportResolution {
     }
   }
 
+  // Sibling imports are resolved concurrently on at most this many threads. Import resolution is mostly waiting for I/O, so we use at least 2 threads.
+  val maxParallelImports: Int = math.max(2, Runtime.getRuntime.availableProcessors)
+
+  // The worker threads of a `ForkJoinPool` are daemon threads, so this pool does not need to be shut down.
+  private lazy val importPool: ForkJoinPool = new ForkJoinPool(maxParallelImports)
+
+  private def runInImportPool[R](computation: => R): R = Thread.currentThread match {
+    case worker: ForkJoinWorkerThread if worker.getPool eq importPool => computation
+    case _                                                            =>
+      importPool.invoke(new RecursiveTask[R] {
+        override def compute(): R = computation
+      })
+  }
+
+  /** Run a blocking read of a file or of a remote resource. When called in a `ForkJoinPool` worker (such as the threads of `importPool`), the pool may start a
+    * spare thread while this thread is blocked, so that other imports continue to be resolved.
+    */
+  private def blockingRead[R](read: => R): R = {
+    var result: Option[R] = None
+    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker {
+      override def block(): Boolean = {
+        result = Some(read)
+        true
+      }
+
+      override def isReleasable: Boolean = result.isDefined
+    })
+    result.get
+  }
+
+  /** Resolve imports in all immediate subexpressions of `expr` concurrently. Each subexpression starts from the same import context `state0`, so that the
+    * result does not depend on which thread finishes first.
+    *
+    * The results are combined in the order of subexpressions, so the first failure is reported in the same way as with sequential resolution. The import
+    * contexts are merged in the same order, and entries found earlier take precedence. Two siblings may both resolve the same import, but they will obtain
+    * equal values for it.
+    *
+    * When a subexpression fails to resolve, the subexpressions after it are cancelled, because sequential resolution would not have resolved them. The
+    * subexpressions before it continue, because one of them may fail as well, and then its failure is the one that is reported.
+    */
+  private def resolveSubexpressionsInParallel(
+    expr: Expression,
+    visited: Seq[Import[Expression]],
+    parent: Import[Expression],
+    enableCache: Boolean,
+    state0: ImportContext,
+  ): (ImportResolutionResult[Expression], ImportContext) = {
+    type Outcome = Try[(ImportResolutionResult[Expression], ImportContext)]
+    val context                                     = EvaluationContext.capture()
+    val children                                    = expr.subexpressions.filter(_.containsImports).distinct.toIndexedSeq
+    val tokens                                      = children.map(_ => new CancellationToken(context.token))
+    val outcomes: IndexedSeq[Outcome]               = runInImportPool {
+      val tasks = children.zipWithIndex.map { case (child, index) =>
+        new RecursiveTask[Outcome] {
+          override def compute(): Outcome = {
+            val outcome = Try(context.copy(token = Some(tokens(index))).run(resolveImportsStep(child, visited, parent, enableCache).run(state0)))
+            outcome match {
+              case Success((Resolved(_), _)) =>
+              case _                         => tokens.drop(index + 1).foreach(_.cancel(s"Import resolution stopped after a failure in ${child.print}"))
+            }
+            outcome
+          }
+        }
+      }
+      // The first task runs in the current worker thread. While waiting in `join()`, a worker thread runs other queued tasks, so nested calls cannot exhaust the pool.
+      tasks.drop(1).foreach(_.fork())
+      tasks.zipWithIndex.map { case (task, index) => if (index == 0) task.invoke() else task.join() }
+    }
+    // Only the outcomes up to and including the first failure are used. Outcomes after that may be cancellations caused by that failure.
+    // A subexpression may also be cancelled while it waits for a value that a cancelled sibling was computing, so cancellations are not reported as the
+    // failure unless the entire resolution was cancelled.
+    def failed(outcome: Outcome): Boolean           = outcome match {
+      case Success((Resolved(_), _)) => false
+      case _                         => true
+    }
+    def stoppedBySibling(outcome: Outcome): Boolean = outcome match {
+      case Failure(_: CancellationException) => !context.token.exists(_.isCancelled)
+      case _                                 => false
+    }
+    val firstFailure                                = outcomes.indexWhere(outcome => failed(outcome) && !stoppedBySibling(outcome)) match {
+      case -1    => outcomes.indexWhere(failed)
+      case index => index
+    }
+    val used                                        = if (firstFailure < 0) outcomes else outcomes.take(firstFailure + 1)
+    used.lastOption.foreach(_.get) // Throws the exception of the first failure, if any.
+    val results     = children.zip(used).collect { case (child, Success(result)) => (child, result) }
+    val resultsMap  = results.toMap
+    val mergedState = ImportContext(results.foldLeft(state0.resolved) { case (resolved, (_, (_, state))) => state.resolved ++ resolved })
+    expr.scheme.traverse(e => ImportResolutionStep[Expression](s => (resultsMap.get(e).map(_._1).getOrElse(Resolved(e)), s))).run(mergedState) match {
+      case (scheme, state) => (scheme.map(Expression.apply), state)
+    }
+  }
+
+  // All imports in `expr`, not including imports within imported expressions.
+  private def importsIn(expr: Expression): Seq[Import[Expression]] = expr.scheme match {
+    case i @ Import(_, _, _) => Seq(i)
+    case _                   => expr.subexpressions.filter(_.containsImports).flatMap(importsIn)
+  }
+
+  // The local files that the resolved value of `expr` depends on, or `None` if it depends on something else, such as environment variables or remote imports.
+  // Imports with a digest and imports as `Location` do not depend on the contents of any files.
+  private def localDependencies(expr: Expression, parent: Import[Expression]): Option[Seq[FileStamp]] =
+    importsIn(expr).map(Import.chainWith(parent, _).canonicalize).foldLeft(Option(Seq[FileStamp]())) { (dependencies, child) =>
+      if (child.importMode == ImportMode.Location || child.digest.isDefined) dependencies
+      else
+        child.importType match {
+          case ImportPath(_, _) => dependencies.flatMap(d => ResolvedImportCache.shared.dependenciesOf(child).map(d ++ _))
+          case _                => None
+        }
+    }
+
   // TODO: remove this code
 //  def printVisited(visited: Seq[Import[Expression]]): String = visited.map(_.print).mkString("[", ", ", "]")
 
@@ -248,6 +396,7 @@ object ImportResolution {
     enableCache: Boolean,
   ): ImportResolutionStep[Expression] =
     ImportResolutionStep[Expression] { case stateGamma0 @ ImportContext(gamma) =>
+      CancellationToken.checkCurrent()
       val (importResolutionResult, finalState) = expr.scheme match {
         // If `expr` is not an Import, we will defer to other `case` clauses to iterate over its subexpressions.
         case i @ Import(_, _, _)                 =>
@@ -351,12 +500,13 @@ object ImportResolution {
             if (child.importMode == ImportMode.Location)
               Right(())
             else
-              child.digest.flatMap(readFirstCached) match {
+              child.digest.flatMap(readFirstCachedFrozen) match {
                 case Some(expr) => Left(Resolved(expr))
                 case None       => Right(())
               }
 
-          lazy val missingOrData: Either[ImportResolutionResult[Expression], Array[Byte]] = child.importType match {
+          // For local files, we also return the file that was read with its stamp, so that the resolved value can be cached across invocations.
+          lazy val missingOrData: Either[ImportResolutionResult[Expression], (Array[Byte], Option[FileStamp.ReadFile])] = child.importType match {
             case ImportType.Missing => Left(TransientFailure(Seq("import is `missing` (perhaps not an error)")))
 
             case Remote(childUrl, childUserHeaders) =>
@@ -388,12 +538,12 @@ object ImportResolution {
               (checkHeaderTypeGeneric orElse checkHeaderTypeSpecial) flatMap { userHeadersForHost =>
                 val combinedHeaders: Iterable[(String, String)] =
                   (userHeadersForHost.toMap ++ defaultHeadersForHost.toMap).to(Iterable) // The default headers must override user headers.
-                Try(requests.get(childUrl.toString, headers = combinedHeaders)) match {
+                Try(blockingRead(HttpFetcher.current.get(childUrl.toString, combinedHeaders))) match {
                   case Failure(exception) => Left(TransientFailure(Seq(s"import failed from url $childUrl: $exception")))
                   case Success(response)  =>
                     corsComplianceError(parent.importType, child.importType, response.headers) match {
                       case Some(corsError) => Left(PermanentFailure(Seq(s"import from url $childUrl failed CORS check: $corsError")))
-                      case None            => Right(response.bytes)
+                      case None            => Right((response.bytes, None))
                     }
                 }
               }
@@ -402,11 +552,10 @@ object ImportResolution {
               (for {
                 javaPath <- Try(path.toJavaPath)
                 _        <- if (javaPath.toFile.exists) Success(()) else Failure(new Exception(messageForNonexistingImportFile(javaPath)))
-                bytes    <- Try(Files.readAllBytes(javaPath))
-              } yield bytes) match {
+                data     <- blockingRead(FileStamp.read(javaPath))
+              } yield data) match {
                 case Failure(exception) => Left(TransientFailure(Seq(s"Failed to read imported file: $exception")))
-                case Success(bytes)     =>
-                  Right(bytes)
+                case Success(readFile)  => Right((readFile.bytes, Some(readFile)))
               }
 
             case ImportType.Env(envVarName) =>
@@ -414,51 +563,68 @@ object ImportResolution {
                 case Some(value) =>
                   Try(value.getBytes("UTF-8")) match {
                     case Failure(exception) => Left(PermanentFailure(Seq(s"Env variable '$envVarName' is not a valid UTF-8 string: $exception")))
-                    case Success(utf8bytes) => Right(utf8bytes)
+                    case Success(utf8bytes) => Right((utf8bytes, None))
                   }
                 case None        => Left(TransientFailure(Seq(s"Env variable '$envVarName' is undefined")))
               }
           }
 
+          lazy val resolveIfCachedLocally: Either[ImportResolutionResult[Expression], Unit] = child.importType match {
+            case ImportPath(_, _) if child.importMode != ImportMode.Location =>
+              ResolvedImportCache.shared.get(child) match {
+                case Some(expr) => Left(Resolved(expr))
+                case None       => Right(())
+              }
+            case _                                                           => Right(())
+          }
+
           // Resolve imports in the expression we just parsed.
-          val importReadSuccessOrFailure: Either[ImportResolutionResult[Expression], Expression] = for {
+          val importReadSuccessOrFailure: Either[ImportResolutionResult[Expression], (Expression, Option[FileStamp.ReadFile])] = for {
             _                <- checkIfAlreadyResolved
             _                <- if (enableCache) resolveIfCached else Right(())
             _                <- cyclicImportCheck
             _                <- referentialCheck
+            _                <- if (enableCache) resolveIfCachedLocally else Right(())
             readByImportMode <- resolveByImportMode
-            bytes            <- missingOrData // This is slow.
-            expr             <- Right(readByImportMode(bytes))
+            data             <- missingOrData // This is slow.
+            expr             <- Right(readByImportMode(data._1))
             successfullyRead <- expr match {
                                   case Resolved(x) => Right(x)
                                   case _           => Left(expr)
                                 }
-          } yield successfullyRead
+          } yield (successfullyRead, data._2)
 
-          val newState: (ImportResolutionResult[Expression], ImportContext) = importReadSuccessOrFailure match {
-            case Left(gotEarlyResult)  => (gotEarlyResult, stateGamma1)
-            case Right(readExpression) =>
+          // The third element is the type of the resolved expression, if it was inferred here.
+          val newState: (ImportResolutionResult[Expression], ImportContext, Option[Expression]) = importReadSuccessOrFailure match {
+            case Left(gotEarlyResult)              => (gotEarlyResult, stateGamma1, None)
+            case Right((readExpression, readFile)) =>
               resolveImportsStep(readExpression, visited :+ parent, child, enableCache).run(stateGamma1) match {
                 case (result1, stateGamma2) =>
                   // If the expression was successfully imported, we need to type-check and beta-normalize it.
-                  val result2: ImportResolutionResult[Expression] = result1.flatMap { r =>
+                  val typed: ImportResolutionResult[(Expression, Expression)] = result1.flatMap { r =>
                     r.inferType match { // Note: this type inference is done with empty context because imports may not have any free variables.
-                      case TypecheckResult.Valid(_)          =>
-                        Resolved(r.betaNormalized)
+                      case TypecheckResult.Valid(tpe)        =>
+                        Resolved((r.betaNormalized, tpe))
                       case TypecheckResult.Invalid(messages) =>
                         PermanentFailure(Seq(s"Type error in imported expression ${readExpression.print}:${messages.mkString("\n\t", "\n\t", "\n")}"))
                     }
                   }
-                  (result2, stateGamma2)
+                  val result2: ImportResolutionResult[Expression]             = typed.map(_._1)
+                  for {
+                    file         <- readFile if enableCache
+                    resolved     <- Some(result2).collect { case Resolved(r) => r }
+                    dependencies <- localDependencies(readExpression, child)
+                  } ResolvedImportCache.shared.put(child, resolved, file.stamp +: dependencies) // The file is hashed only here.
+                  (result2, stateGamma2, Some(typed).collect { case Resolved((_, tpe)) => tpe })
               }
           }
           // The new expression has been resolved (or failed).
           // Add the new resolved expression to the import context.
           newState match {
-            case (result2, state2) =>
+            case (result2, state2, knownType) =>
               // Corner case: import as Location must not attempt to use the digest cache.
               val effectiveDigest = if (child.importMode == ImportMode.Location) None else child.digest
-              result2.flatMap(validateHashAndCacheResolved(_, effectiveDigest, enableCache)) match {
+              result2.flatMap(validateHashAndCacheResolved(_, effectiveDigest, enableCache, knownType)) match {
                 case Resolved(r) => (result2, state2.copy(state2.resolved.updated(child, r)))
                 case failure     => (failure, state2)
               }
@@ -479,13 +645,16 @@ object ImportResolution {
               }
           }
 
+        case _ if maxParallelImports > 1 && expr.subexpressions.count(_.containsImports) > 1 =>
+          resolveSubexpressionsInParallel(expr, visited, parent, enableCache, stateGamma0)
+
         case _ =>
           expr.scheme.traverse(resolveImportsStep(_, visited, parent, enableCache)).run(stateGamma0) match {
             case (scheme, state) => (scheme.map(Expression.apply), state)
           }
       }
       val checkDigest                          = importResolutionResult.flatMap {
-        case e @ Expression(Import(importType, importMode, digest)) => validateHashAndCacheResolved(e, digest, enableCache)
+        case e @ Expression(Import(importType, importMode, digest)) => validateHashAndCacheResolved(e, digest, enableCache, knownType = None)
         case e @ _                                                  => Resolved(e)
       }
       (checkDigest, finalState)
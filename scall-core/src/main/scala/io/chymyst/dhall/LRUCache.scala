@@ -4,31 +4,91 @@ import io.chymyst.dhall.Syntax.{Expression, ExpressionScheme}
 import io.chymyst.dhall.TypeCheck.KnownVars
 
 import java.util
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{CancellationException, CompletableFuture, CompletionException, ConcurrentHashMap}
+import scala.annotation.tailrec
 import scala.collection.mutable
 import scala.jdk.CollectionConverters.IteratorHasAsScala
 
+/** The caches used for alpha-normalization, beta-normalization, and type-checking.
+  *
+  * Normalization and type-checking use the caches that are current in the calling thread. By default, those are the process-wide `AllCaches.shared` caches. Use
+  * `AllCaches.withCaches` or `EvaluationSession` to run a computation with separate caches, for example to isolate unrelated requests in a server and to free
+  * the cached data when a request is finished.
+  */
 final case class AllCaches(
   alpha: IdempotentCache[Expression],
-  beta: IdempotentCache[Expression],
+  beta: IdempotentCache[Semantics.ExprWithOptions],
   gamma: ObservedCache[(KnownVars, ExpressionScheme[Expression]), TypecheckResult[Expression]],
-)
+) {
+  def statistics: String = Seq(alpha, beta, gamma).map(cache => s"${cache.name}: ${cache.statistics}").mkString("\n")
+
+  def metrics: Seq[CacheMetrics] = Seq(alpha.metrics, beta.metrics, gamma.metrics)
+}
 
 object AllCaches {
-  def apply(alphaCacheSize: Int, betaCacheSize: Int, gammaCacheSize: Int): AllCaches = AllCaches(
-    alpha = IdempotentCache("Alpha-normalization cache", ObservedCache.createCache[Expression, Expression](Option(alphaCacheSize).filter(_ >= 0))),
-    beta = IdempotentCache("Beta-normalization cache", ObservedCache.createCache[Expression, Expression](Option(betaCacheSize).filter(_ >= 0))),
-    gamma = new ObservedCache(
-      "Type-checking cache",
-      ObservedCache.createCache[(KnownVars, ExpressionScheme[Expression]), TypecheckResult[Expression]](Option(gammaCacheSize).filter(_ >= 0)),
+
+  /** Create new empty caches.
+    *
+    * @param alphaCacheSize
+    *   Maximum number of entries in the alpha-normalization cache, or a negative number for no limit.
+    * @param betaCacheSize
+    *   Maximum number of entries in the beta-normalization cache, or a negative number for no limit.
+    * @param gammaCacheSize
+    *   Maximum number of entries in the type-checking cache, or a negative number for no limit.
+    * @param maxNormalFormsWeight
+    *   Maximum total number of subexpressions in the keys and values of the beta-normalization cache. The alpha-normalization cache gets a quarter of that.
+    */
+  def apply(alphaCacheSize: Int, betaCacheSize: Int, gammaCacheSize: Int, maxNormalFormsWeight: Long = Semantics.maxCacheWeight): AllCaches = AllCaches(
+    alpha = IdempotentCache[Expression](
+      "Alpha-normalization cache",
+      Option(alphaCacheSize).filter(_ >= 0),
+      Some(ObservedCache.Weight[Expression, Expression](math.max(1L, maxNormalFormsWeight / 4), ObservedCache.expressionWeight)),
     ),
+    beta = IdempotentCache[Semantics.ExprWithOptions](
+      "Beta-normalization cache",
+      Option(betaCacheSize).filter(_ >= 0),
+      Some(
+        ObservedCache.Weight[Semantics.ExprWithOptions, Semantics.ExprWithOptions](
+          maxNormalFormsWeight,
+          (key, value) => ObservedCache.expressionWeight(key.expr, value.expr),
+        )
+      ),
+    ),
+    gamma =
+      new ObservedCache[(KnownVars, ExpressionScheme[Expression]), TypecheckResult[Expression]]("Type-checking cache", Option(gammaCacheSize).filter(_ >= 0)),
   )
 
-  def default = apply(2000000, 2000000, 1000000)
+  def default: AllCaches = apply(Semantics.maxCacheSize.getOrElse(-1), Semantics.maxCacheSize.getOrElse(-1), TypeCheck.maxCacheSize.getOrElse(-1))
+
+  // The caches used by computations that did not choose their own caches.
+  lazy val shared: AllCaches = default
+
+  private val currentCaches = new ScopedThreadLocal[AllCaches]
+
+  def current: AllCaches = currentCaches.value.getOrElse(shared)
+
+  // Run a computation using the given caches for normalization and type-checking in the current thread. Threads started by the computation do not use these
+  // caches unless the computation passes them explicitly (see `EvaluationContext`).
+  def withCaches[R](caches: AllCaches)(computation: => R): R = currentCaches.withValue(Some(caches))(computation)
+}
+
+// A cache that can report how many entries it has evicted.
+trait EvictionCounter {
+  def evictions: Long
 }
 
-final case class LRUCache[K, V](maxSize: Int) extends mutable.Map[K, V] {
+final case class LRUCache[K, V](maxSize: Int) extends mutable.Map[K, V] with EvictionCounter {
+  private var evictionCount: Long = 0L
+
+  override def evictions: Long = evictionCount
+
   private val lruCache = new util.LinkedHashMap[K, V](maxSize * 4 / 3, 0.75f, true) {
-    override def removeEldestEntry(eldest: util.Map.Entry[K, V]): Boolean = size > maxSize
+    override def removeEldestEntry(eldest: util.Map.Entry[K, V]): Boolean = {
+      val evict = size > maxSize
+      if (evict) evictionCount += 1
+      evict
+    }
   }
 
   override def get(key: K): Option[V] = Option(lruCache.get(key))
@@ -46,42 +106,236 @@ final case class LRUCache[K, V](maxSize: Int) extends mutable.Map[K, V] {
   }
 }
 
-class ObservedCache[A, B](val name: String, cache: mutable.Map[A, B]) {
-  protected var requests: Long = 0
+/** A thread-safe cache that counts requests and cache hits.
+  *
+  * The cache is split into stripes with separate locks, and each lock is held only while looking up or storing a value, never while computing a value. If
+  * several threads request the same missing key at the same time, only one of them computes the value and the other threads wait for that result. The cached
+  * computations must be deterministic functions of the key. A thread does not wait if that would close a cycle of threads waiting for each other's results: for
+  * example, a thread requesting a key that it is already computing itself, or thread A computing key 1 and requesting key 2 while thread B is computing key 2
+  * and requesting key 1. In that case, the thread computes the value again instead of waiting.
+  *
+  * The cache collects metrics (see `CacheMetrics`) without printing anything. The metrics can be exported via JMX with `CacheMetrics.registerMBean`.
+  *
+  * @param name
+  *   Name of the cache, for printing statistics.
+  * @param maybeSize
+  *   Maximum total number of entries, or `None` for no limit.
+  * @param stripeCount
+  *   Number of independently locked stripes.
+  * @param maybeWeight
+  *   If given, the entries are also limited by their total weight and evicted according to the W-TinyLFU policy (see `WeightedCache`).
+  */
+class ObservedCache[A, B](
+  val name: String,
+  maybeSize: Option[Int],
+  stripeCount: Int = ObservedCache.defaultStripeCount,
+  maybeWeight: Option[ObservedCache.Weight[A, B]] = None,
+) {
+  require(stripeCount > 0)
+
+  private val stripes: Array[mutable.Map[A, B]] = Array.fill(stripeCount)(
+    ObservedCache.createCache[A, B](
+      maybeSize.map(maxSize => math.max(1, (maxSize + stripeCount - 1) / stripeCount)),
+      maybeWeight.map(weight => weight.copy(maxTotal = math.max(1L, weight.maxTotal / stripeCount))),
+    )
+  )
+
+  private val inFlight = new ConcurrentHashMap[A, ObservedCache.InFlight[B]]()
+
+  protected val requests = new AtomicLong(0L)
+
+  protected val hits = new AtomicLong(0L)
+
+  private val misses = new AtomicLong(0L)
+
+  private val computedWeight = new AtomicLong(0L)
+
+  private val computeNanos = new AtomicLong(0L)
+
+  private def stripeFor(key: A): mutable.Map[A, B] = {
+    val hash = key.hashCode
+    stripes(Math.floorMod(hash ^ (hash >>> 16), stripeCount))
+  }
+
+  final def get(key: A): Option[B] = {
+    val stripe = stripeFor(key)
+    stripe.synchronized(stripe.get(key))
+  }
+
+  // Look up a key again after `get` returned nothing, without counting another request in the frequency sketch of a weighted cache.
+  private def recheck(key: A): Option[B] = {
+    val stripe = stripeFor(key)
+    stripe.synchronized(stripe match {
+      case weighted: WeightedCache[A, B] @unchecked => weighted.peek(key)
+      case _                                        => stripe.get(key)
+    })
+  }
 
-  protected var hits: Long = 0
+  // The weight is computed before taking the stripe lock, because weighing an expression may traverse it.
+  protected final def put(key: A, value: B): Unit = putWeighed(key, value, maybeWeight.map(_.weigh(key, value)).getOrElse(1L))
 
-  val step = 100000
+  private def putWeighed(key: A, value: B, weight: Long): Unit = {
+    val stripe = stripeFor(key)
+    stripe.synchronized(stripe match {
+      case weighted: WeightedCache[A, B] @unchecked => weighted.putWeighed(key, value, weight)
+      case _                                        => stripe.update(key, value)
+    })
+  }
+
+  // Compute a missing value, record the time and the weight of the computed entry, and store it.
+  private def computeAndPut(key: A, default: => B): B = {
+    val value  = compute(key, default)
+    val weight = maybeWeight.map(_.weigh(key, value)).getOrElse(1L)
+    computedWeight.addAndGet(weight)
+    putWeighed(key, value, weight)
+    value
+  }
 
-  final def get(key: A): Option[B] = cache.get(key)
+  // Compute a missing value and record the time.
+  private def compute(key: A, default: => B): B = {
+    misses.incrementAndGet()
+    val initNanos = System.nanoTime()
+    val value     = default
+    computeNanos.addAndGet(System.nanoTime() - initNanos)
+    value
+  }
 
-  def getOrElseUpdate(key: A, default: => B): B = this.synchronized {
-    requests += 1
-    if (requests > 1 && requests % step == 0)
-      println(s"INFO $name processed ${requests / 1000}K requests with $percentHits% cache hits, this request is for key = ${key match {
-          case e: Expression => e.print
-          case _             => key
-        }}")
-    if (cache contains key) hits += 1
-    cache.getOrElseUpdate(key, default)
+  def getOrElseUpdate(key: A, default: => B): B = {
+    requests.incrementAndGet()
+    get(key) match {
+      case Some(value) =>
+        hits.incrementAndGet()
+        value
+      case None        =>
+        val ours     = new ObservedCache.InFlight[B](Thread.currentThread)
+        val existing = inFlight.putIfAbsent(key, ours)
+        if (existing == null) {
+          try {
+            // Another thread may have stored the value after our first lookup but before we registered our computation.
+            val value = recheck(key) match {
+              case Some(value) =>
+                hits.incrementAndGet()
+                value
+              case None        => computeAndPut(key, default)
+            }
+            ours.result.complete(value)
+            value
+          } catch {
+            case t: Throwable =>
+              ours.result.completeExceptionally(t)
+              throw t
+          } finally inFlight.remove(key, ours)
+        } else
+          ObservedCache.awaitUnlessCyclic(existing) match {
+            case Some(value) =>
+              hits.incrementAndGet()
+              value
+            case None        => compute(key, default)
+          }
+    }
   }
 
-  def percentHits = f"${hits.toDouble * 100 / (if (requests > 0) requests else 1).toDouble}%2.2f"
+  def percentHits = f"${hits.get.toDouble * 100 / (if (requests.get > 0) requests.get else 1).toDouble}%2.2f"
+
+  def size: Int = stripes.map(stripe => stripe.synchronized(stripe.size)).sum
+
+  def evictions: Long = stripes
+    .map(stripe =>
+      stripe.synchronized(stripe match {
+        case counter: EvictionCounter => counter.evictions
+        case _                        => 0L
+      })
+    ).sum
 
-  def statistics: String = this.synchronized(s"Total requests: $requests, cache hits: $percentHits%, total cache size: ${cache.size}")
+  def metrics: CacheMetrics = CacheMetrics(
+    name = name,
+    requests = requests.get,
+    hits = hits.get,
+    misses = misses.get,
+    evictions = evictions,
+    inFlight = inFlight.size,
+    computedWeight = computedWeight.get,
+    computeNanos = computeNanos.get,
+    size = size,
+  )
+
+  def statistics: String = s"Total requests: ${requests.get}, cache hits: $percentHits%, total cache size: $size"
 }
 
-final case class IdempotentCache[A](override val name: String, cache: mutable.Map[A, A]) extends ObservedCache[A, A](name, cache) {
-  override def getOrElseUpdate(key: A, default: => A): A = this.synchronized {
+final case class IdempotentCache[A](override val name: String, maybeSize: Option[Int], maybeWeight: Option[ObservedCache.Weight[A, A]] = None)
+    extends ObservedCache[A, A](name, maybeSize, ObservedCache.defaultStripeCount, maybeWeight) {
+  override def getOrElseUpdate(key: A, default: => A): A = {
     val result = super.getOrElseUpdate(key, default)
-    cache.put(result, result) // The cached operation is assumed to be idempotent. Do not use `default` here because we want to avoid computing it if possible.
+    put(result, result) // The cached operation is assumed to be idempotent. Do not use `default` here because we want to avoid computing it if possible.
     result
   }
 }
 
 object ObservedCache {
-  def createCache[A, B](maybeSize: Option[Int]): mutable.Map[A, B] = maybeSize match {
-    case Some(maxSize) => new LRUCache[A, B](maxSize)
-    case None          => mutable.Map[A, B]()
+  val defaultStripeCount: Int = 64
+
+  // A value being computed by the thread `owner`.
+  private final class InFlight[B](val owner: Thread) {
+    val result: CompletableFuture[B] = new CompletableFuture[B]
+  }
+
+  // For each thread that is waiting for a value computed by another thread, the value it is waiting for. These are the edges of the waits-for graph.
+  private val waitingFor = new ConcurrentHashMap[Thread, InFlight[_]]()
+
+  // Whether the thread `from` is waiting, directly or via other threads, for a value computed by the thread `to`.
+  @tailrec private def waitsFor(from: Thread, to: Thread, maxSteps: Int): Boolean =
+    if (from eq to) true
+    else
+      waitingFor.get(from) match {
+        case null  => false
+        case entry => maxSteps > 0 && waitsFor(entry.owner, to, maxSteps - 1)
+      }
+
+  /** Wait for a value computed by another thread. Return `None` if waiting could deadlock, or if the other thread failed to compute the value.
+    *
+    * The current thread is registered as waiting before the waits-for graph is checked. So, if two threads start waiting for each other at the same time, at
+    * least one of them will see the cycle and will not wait.
+    *
+    * The failure of another thread is not rethrown here, because it may belong only to that thread's evaluation: for example, that evaluation was cancelled or
+    * timed out. The caller then computes the value itself, and a failure that does not depend on the evaluation is thrown again from there.
+    */
+  private def awaitUnlessCyclic[B](entry: InFlight[B]): Option[B] = {
+    val self     = Thread.currentThread
+    val previous = waitingFor.put(self, entry) // Not null only if this thread ran another task while it was waiting.
+    try {
+      if (waitsFor(entry.owner, self, waitingFor.size)) None
+      else
+        try Some(entry.result.join())
+        catch { case _: CompletionException | _: CancellationException => None }
+    } finally if (previous == null) waitingFor.remove(self) else waitingFor.put(self, previous)
+  }
+
+  /** Limit on the total weight of cache entries.
+    *
+    * @param maxTotal
+    *   Maximum total weight.
+    * @param weigh
+    *   Weight of a key and its value.
+    */
+  final case class Weight[A, B](maxTotal: Long, weigh: (A, B) => Long)
+
+  // A rough estimate of the heap size taken by one `Expression` node together with its `ExpressionScheme`. Set the system property `dhall.cache.bytesPerNode`
+  // to change this estimate.
+  val bytesPerExpressionNode: Long = sys.props.get("dhall.cache.bytesPerNode").map(_.trim.toLong).filter(_ > 0).getOrElse(100L)
+
+  // The fraction of the maximum heap size that the cached normal forms may take. Set the system property `dhall.cache.heapFraction` to change it.
+  val normalFormsHeapFraction: Double = sys.props.get("dhall.cache.heapFraction").map(_.trim.toDouble).filter(f => f > 0 && f <= 1).getOrElse(0.25)
+
+  // The number of `Expression` nodes that fit into the given fraction of the maximum heap size.
+  def expressionNodesInHeapFraction(fraction: Double): Long = math.max(1L, (Runtime.getRuntime.maxMemory * fraction / bytesPerExpressionNode).toLong)
+
+  // Weight of an expression cache entry: the number of subexpressions in the key and the value.
+  def expressionWeight(key: Expression, value: Expression): Long =
+    if (key eq value) key.exprCount.toLong else key.exprCount.toLong + value.exprCount.toLong
+
+  def createCache[A, B](maybeSize: Option[Int], maybeWeight: Option[Weight[A, B]] = None): mutable.Map[A, B] = (maybeSize, maybeWeight) match {
+    case (_, Some(Weight(maxTotal, weigh))) => new WeightedCache[A, B](maybeSize.getOrElse(Int.MaxValue), maxTotal, weigh)
+    case (Some(maxSize), None)              => new LRUCache[A, B](maxSize)
+    case (None, None)                       => mutable.Map[A, B]()
   }
 }
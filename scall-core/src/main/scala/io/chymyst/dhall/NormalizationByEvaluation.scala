@@ -0,0 +1,226 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.Semantics.BetaNormalizingOptions
+import io.chymyst.dhall.Syntax.ExpressionScheme._
+import io.chymyst.dhall.Syntax.{Expression, ExpressionScheme, Natural}
+import io.chymyst.dhall.SyntaxConstants.{Builtin, VarName}
+
+import scala.annotation.tailrec
+import scala.collection.mutable
+import scala.util.control.TailCalls.{TailRec, done, tailcall}
+
+/** Beta-normalization by evaluation (NbE). This is an alternative to `Semantics.betaNormalizeUncached`, selected by
+  * `BetaNormalizingOptions.normalizationByEvaluation`.
+  *
+  * An expression is evaluated into a semantic `Value` in an environment that maps bound variables to values. Functions are represented by Scala closures, so a
+  * beta-reduction step is a closure call and does not need `substitute` and `shift` over the function body. Values are then quoted back into `Expression`.
+  *
+  * Variables that are not bound in the environment (either free variables of the expression, or variables bound by a lambda that is being quoted) are
+  * represented by "fresh" variable names that cannot occur in Dhall source code. So, the free variables of any value have fresh names, and values can be moved
+  * under binders without shifting. When a lambda is quoted, its fresh variable is replaced by the proper de Bruijn-indexed variable.
+  *
+  * Only the variable binding constructs (`λ`, `∀`, `let`), type annotations, function applications, and the folds over `Natural` and `List` literals are
+  * evaluated here. All other constructs have their arguments evaluated here, once, and then only the top-level node is normalized by
+  * `Semantics.betaNormalizeNode` using the given options, so that the normal forms are the same as those computed by `Semantics`.
+  */
+object NormalizationByEvaluation {
+
+  sealed trait Value
+
+  // A function value. The body is a Scala closure computing the value of the body for a given value of the argument.
+  final class VLambda(val name: VarName, val tipe: Value, val body: Value => TailRec[Value], quoteLambda: VLambda => TailRec[Expression]) extends Value {
+    private var quotedExpr: Expression = null
+
+    // The quoted lambda is computed once and then reused, because the same function value may be quoted many times.
+    def quoted: TailRec[Expression] =
+      if (quotedExpr ne null) done(quotedExpr)
+      else
+        quoteLambda(this).map { expr =>
+          quotedExpr = expr
+          expr
+        }
+  }
+
+  // A beta-normal expression. All free variables in it have fresh names.
+  final case class VExpr(expr: Expression) extends Value
+
+  // The character \u0000 cannot occur in a Dhall variable name, so these names will never clash with names used in Dhall code.
+  private def freshBoundName(name: VarName, level: Int): VarName = VarName(name.name + "\u0000" + level.toString)
+
+  private def freshFreeName(name: VarName, index: Natural): VarName = VarName(name.name + "\u0000free\u0000" + index.toString(10))
+
+  private def isFreshName(name: VarName): Boolean = name.name.indexOf('\u0000') >= 0
+
+  // Bound variables: for each name, the list of values of variables with that name, so that index 0 is the innermost one.
+  private final case class Env(values: Map[VarName, List[Value]]) {
+    def bind(name: VarName, value: Value): Env = Env(values.updated(name, value :: values.getOrElse(name, Nil)))
+
+    def lookup(name: VarName, index: Natural): Either[Natural, Value] = {
+      val bound = values.getOrElse(name, Nil)
+      if (index < bound.length) Right(bound(index.intValue)) else Left(index - bound.length)
+    }
+  }
+
+  private object Env {
+    val empty: Env = Env(Map())
+  }
+
+  def normalize(expr: Expression, options: BetaNormalizingOptions): Expression = new Evaluator(options).run(expr)
+
+  // Evaluation and quoting are written with `TailRec`, so that deeply nested expressions (such as long chains of `let` bindings) do not overflow the JVM stack.
+  private final class Evaluator(options: BetaNormalizingOptions) {
+    // Free variables of the expression being normalized, indexed by their fresh names.
+    private val freeVariables: mutable.Map[VarName, (VarName, Natural)] = mutable.Map()
+
+    // The number of binders whose bodies are being quoted. A fresh bound variable is named by this level rather than by a global counter, so normalizing the
+    // same expression again creates the same intermediate terms, and the entries they add to the beta-normalization cache and to the interner are reused.
+    private var level: Int = 0
+
+    def run(expr: Expression): Expression = {
+      val result = eval(Env.empty, expr).flatMap(quote).result
+      // Replace fresh names of free variables by the original variables. The `substitute` function will shift each variable under its binders as needed.
+      freeVariables.foldLeft(result) { case (prev, (freshName, (name, index))) => Semantics.substitute(prev, freshName, 0, Expression(Variable(name, index))) }
+    }
+
+    // The subexpressions of `scheme` are already beta-normal here, so only the top-level node needs to be beta-normalized.
+    private def normalizeNode(scheme: ExpressionScheme[Expression]): Expression = Semantics.betaNormalizeNode(scheme, options)
+
+    def quote(value: Value): TailRec[Expression] = value match {
+      case VExpr(expr)     => done(expr)
+      case lambda: VLambda => tailcall(lambda.quoted)
+    }
+
+    // Evaluate the body of a binder with a new fresh variable, and quote it back with that variable replaced by the bound variable of the binder.
+    private def quoteBody(name: VarName, body: Value => TailRec[Value]): TailRec[Expression] = {
+      val freshName = freshBoundName(name, level)
+      level += 1
+      tailcall(body(VExpr(Expression(Variable(freshName, 0))))).flatMap(quote).map { bodyExpr =>
+        level -= 1
+        Semantics.substitute(bodyExpr, freshName, 0, Expression(Variable(name, 0)))
+      }
+    }
+
+    private def quoteLambda(lambda: VLambda): TailRec[Expression] = for {
+      tipe <- quote(lambda.tipe)
+      body <- quoteBody(lambda.name, lambda.body)
+    } yield Expression(Lambda(lambda.name, tipe, body))
+
+    private def evalBody(env: Env, name: VarName, body: Expression): Value => TailRec[Value] = (arg: Value) => tailcall(eval(env.bind(name, arg), body))
+
+    private def evalAndQuote(env: Env, expr: Expression): TailRec[Expression] = tailcall(eval(env, expr)).flatMap(quote)
+
+    def eval(env: Env, expr: Expression): TailRec[Value] = expr.scheme match {
+      case Variable(name, index) =>
+        if (isFreshName(name)) done(VExpr(expr))
+        else
+          env.lookup(name, index) match {
+            case Right(value)    => done(value)
+            case Left(freeIndex) =>
+              val freshName = freshFreeName(name, freeIndex)
+              freeVariables.update(freshName, (name, freeIndex))
+              done(VExpr(Expression(Variable(freshName, 0))))
+          }
+
+      case ExprBuiltin(_) | ExprConstant(_) | NaturalLiteral(_) | IntegerLiteral(_) | DoubleLiteral(_) | BytesLiteral(_) | DateLiteral(_, _, _) |
+          TimeLiteral(_, _, _, _) | TimeZoneLiteral(_) =>
+        done(VExpr(expr))
+
+      case Lambda(name, tipe, body) => tailcall(eval(env, tipe)).map(tipeValue => new VLambda(name, tipeValue, evalBody(env, name, body), quoteLambda))
+
+      case Forall(name, tipe, body) =>
+        for {
+          tipeExpr <- evalAndQuote(env, tipe)
+          bodyExpr <- quoteBody(name, evalBody(env, name, body))
+        } yield VExpr(Expression(Forall(name, tipeExpr, bodyExpr)))
+
+      case Let(name, _, subst, body) => tailcall(eval(env, subst)).flatMap(substValue => tailcall(eval(env.bind(name, substValue), body)))
+
+      case Annotation(data, _) => tailcall(eval(env, data))
+
+      case Application(_, _) => tailcall(evalApplication(env, expr))
+
+      case Import(_, _, _) => throw new Exception(s"Unresolved import in $expr cannot be beta-normalized")
+
+      // Each subexpression is evaluated and quoted only once here, and the resulting node is normalized without normalizing its subexpressions again.
+      case other => other.mapTC(evalAndQuote(env, _)).map(scheme => VExpr(normalizeNode(scheme)))
+    }
+
+    // Split f a b c into f and Seq(a, b, c).
+    private def applicationSpine(expr: Expression): (Expression, List[Expression]) = {
+      @tailrec def loop(e: Expression, args: List[Expression]): (Expression, List[Expression]) = e.scheme match {
+        case Application(func, arg) => loop(func, arg :: args)
+        case _                      => (e, args)
+      }
+
+      loop(expr, Nil)
+    }
+
+    private def evalAll(env: Env, exprs: List[Expression]): TailRec[List[Value]] = exprs match {
+      case Nil          => done(Nil)
+      case head :: tail =>
+        for {
+          value  <- tailcall(eval(env, head))
+          values <- tailcall(evalAll(env, tail))
+        } yield value :: values
+    }
+
+    private def applyAll(f: Value, values: List[Value]): TailRec[Value] = values match {
+      case Nil          => done(f)
+      case head :: tail => tailcall(apply(f, head)).flatMap(applyAll(_, tail))
+    }
+
+    private def evalApplication(env: Env, expr: Expression): TailRec[Value] = {
+      val (head, args) = applicationSpine(expr)
+      evalAll(env, args).flatMap { argValues =>
+        head.scheme match {
+          // Natural/fold m b g z
+          case ExprBuiltin(Builtin.NaturalFold) if argValues.length >= 4 =>
+            argValues match {
+              case VExpr(Expression(NaturalLiteral(m))) :: _ :: g :: z :: rest => naturalFold(m, g, z).flatMap(applyAll(_, rest))
+              case _                                                           => tailcall(eval(env, head)).flatMap(applyAll(_, argValues))
+            }
+
+          // List/fold a list b g z
+          case ExprBuiltin(Builtin.ListFold) if argValues.length >= 5    =>
+            argValues match {
+              case _ :: VExpr(Expression(EmptyList(_))) :: _ :: _ :: z :: rest        => applyAll(z, rest)
+              case _ :: VExpr(Expression(NonEmptyList(exprs))) :: _ :: g :: z :: rest =>
+                val folded = exprs.foldRight(done(z): TailRec[Value]) { (e, accumulated) =>
+                  for {
+                    acc      <- accumulated
+                    gApplied <- tailcall(apply(g, VExpr(e)))
+                    result   <- tailcall(apply(gApplied, acc))
+                  } yield result
+                }
+                folded.flatMap(applyAll(_, rest))
+              case _                                                                  => tailcall(eval(env, head)).flatMap(applyAll(_, argValues))
+            }
+
+          case _ => tailcall(eval(env, head)).flatMap(applyAll(_, argValues))
+        }
+      }
+    }
+
+    // Compute g (g (... (g z))) with `m` applications of `g`. Stop early if the result does not change any more.
+    private def naturalFold(m: Natural, g: Value, z: Value): TailRec[Value] = {
+      def loop(current: Value, counter: Natural): TailRec[Value] =
+        if (counter >= m) done(current)
+        else
+          tailcall(apply(g, current)).flatMap { next =>
+            (current, next) match {
+              case (VExpr(x), VExpr(y)) if x == y => done(current)
+              case _                              => loop(next, counter + 1)
+            }
+          }
+
+      loop(z, BigInt(0))
+    }
+
+    def apply(func: Value, arg: Value): TailRec[Value] = func match {
+      case lambda: VLambda                          => tailcall(lambda.body(arg))
+      // A lambda that was returned by `Semantics`. Its body has no free variables other than its own bound variable and some fresh variables.
+      case VExpr(Expression(Lambda(name, _, body))) => tailcall(eval(Env.empty.bind(name, arg), body))
+      case VExpr(funcExpr)                          => quote(arg).map(argExpr => VExpr(normalizeNode(Application(funcExpr, argExpr))))
+    }
+  }
+}
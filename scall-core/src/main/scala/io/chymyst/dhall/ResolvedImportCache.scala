@@ -0,0 +1,134 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.ResolvedImportCache.{Entry, FileStamp}
+import io.chymyst.dhall.Syntax.Expression
+import io.chymyst.dhall.Syntax.ExpressionScheme.Import
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import scala.util.Try
+
+/** A cache of resolved local imports that is kept across calls to `resolveImports`. The values are type-checked and beta-normalized, so a cache hit skips
+  * reading, parsing, and type-checking the imported file and all its transitive imports.
+  *
+  * Each entry records the size, the modification time, and the SHA-256 hash of every local file that the resolved value depends on. An entry is used only if
+  * all those files are unchanged: a file whose size and modification time are the same is assumed to be unchanged; otherwise, its contents are hashed again.
+  *
+  * Only imports that depend on nothing except local files are cached. Imports of environment variables, remote imports, and imports that used the `?` operator
+  * to recover from a failure are resolved again each time.
+  *
+  * This class is thread-safe.
+  */
+final class ResolvedImportCache(maxSize: Int) {
+  private val entries = LRUCache[Import[Expression], Entry](maxSize)
+
+  private val hitCount  = new AtomicLong(0L)
+  private val missCount = new AtomicLong(0L)
+
+  def hits: Long = hitCount.get
+
+  def misses: Long = missCount.get
+
+  def size: Int = entries.synchronized(entries.size)
+
+  // Return the cached value of `child` if none of the files it depends on have changed. Invalid entries are removed.
+  def get(child: Import[Expression]): Option[Expression] = {
+    val result = entries.synchronized(entries.get(child)).flatMap { entry =>
+      val stamps = entry.dependencies.map(_.revalidate)
+      if (stamps.forall(_.isDefined)) {
+        val updated = stamps.flatten
+        if (updated != entry.dependencies) entries.synchronized(entries.update(child, entry.copy(dependencies = updated)))
+        Some(entry.expr)
+      } else {
+        invalidate(child)
+        None
+      }
+    }
+    (if (result.isDefined) hitCount else missCount).incrementAndGet()
+    result
+  }
+
+  // The files that the cached value of `child` depends on, or `None` if `child` is not cached.
+  def dependenciesOf(child: Import[Expression]): Option[Seq[FileStamp]] = entries.synchronized(entries.get(child)).map(_.dependencies)
+
+  def put(child: Import[Expression], expr: Expression, dependencies: Seq[FileStamp]): Unit =
+    entries.synchronized(entries.update(child, Entry(expr, dependencies.distinct)))
+
+  def invalidate(child: Import[Expression]): Unit = entries.synchronized(entries.remove(child))
+
+  // Remove all entries that depend on the given file.
+  def invalidatePath(path: Path): Unit = {
+    val absolutePath = path.toAbsolutePath.normalize
+    entries.synchronized {
+      val stale = entries.collect { case (child, entry) if entry.dependencies.exists(_.path == absolutePath) => child }.toList
+      stale.foreach(entries.remove)
+    }
+  }
+
+  def invalidateAll(): Unit = entries.synchronized(entries.clear())
+}
+
+object ResolvedImportCache {
+  final case class Entry(expr: Expression, dependencies: Seq[FileStamp])
+
+  /** The state of a local file when it was read.
+    *
+    * @param path
+    *   Absolute path of the file.
+    * @param size
+    *   File size in bytes.
+    * @param modifiedNanos
+    *   Last modification time, in nanoseconds since the epoch.
+    * @param stampedAtNanos
+    *   The time when the size and the modification time were taken, in nanoseconds since the epoch.
+    * @param sha256
+    *   The SHA-256 hash of the file contents, as a lowercase hex string.
+    */
+  final case class FileStamp(path: Path, size: Long, modifiedNanos: Long, stampedAtNanos: Long, sha256: String) {
+    // Return the stamp of the file as it is now, or `None` if the file's contents have changed or the file cannot be read.
+    def revalidate: Option[FileStamp] = {
+      val now = FileStamp.nowNanos
+      FileStamp.sizeAndTime(path).toOption.flatMap { case (newSize, newModified) =>
+        if (newSize == size && newModified == modifiedNanos && !mayHaveChangedUnnoticed) Some(this)
+        else
+          Try(Semantics.computeHash(Files.readAllBytes(path))).toOption
+            .filter(_ == sha256)
+            .map(_ => copy(size = newSize, modifiedNanos = newModified, stampedAtNanos = now))
+      }
+    }
+
+    // If the file was modified shortly before it was stamped, it may have been modified again after that within the resolution of file modification times.
+    // Then its size and modification time are the same, but its contents are different. Such files are hashed again.
+    private def mayHaveChangedUnnoticed: Boolean = stampedAtNanos - modifiedNanos < FileStamp.modificationTimeResolutionNanos
+  }
+
+  object FileStamp {
+    // The coarsest resolution of file modification times among common file systems (FAT has 2 seconds).
+    val modificationTimeResolutionNanos: Long = TimeUnit.SECONDS.toNanos(2)
+
+    private def nowNanos: Long = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis)
+
+    private def sizeAndTime(path: Path): Try[(Long, Long)] =
+      Try((Files.size(path), Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS)))
+
+    /** The contents of a file together with the size and the modification time taken before reading, so that a concurrent change will be detected later. The
+      * SHA-256 hash is computed only when `stamp` is used, so that reading a file whose stamp is not going to be stored does not hash it.
+      */
+    final class ReadFile private[FileStamp] (path: Path, val bytes: Array[Byte], size: Long, modifiedNanos: Long, stampedAtNanos: Long) {
+      lazy val stamp: FileStamp = FileStamp(path, size, modifiedNanos, stampedAtNanos, Semantics.computeHash(bytes))
+    }
+
+    def read(path: Path): Try[ReadFile] = {
+      val now = nowNanos
+      for {
+        (size, modified) <- sizeAndTime(path)
+        bytes            <- Try(Files.readAllBytes(path))
+      } yield new ReadFile(path.toAbsolutePath.normalize, bytes, size, modified, now)
+    }
+  }
+
+  // The cache used by `resolveImports` when caching is enabled. It is shared by all evaluation sessions: entries are keyed by canonical import and are
+  // revalidated against the files they depend on, so they do not depend on the session that stored them.
+  lazy val shared: ResolvedImportCache = new ResolvedImportCache(maxSize = 10000)
+}
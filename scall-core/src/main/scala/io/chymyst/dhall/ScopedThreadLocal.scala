@@ -0,0 +1,22 @@
+package io.chymyst.dhall
+
+/** A value that is set for the duration of a computation, in the current thread only.
+  *
+  * This is similar to `scala.util.DynamicVariable`, but new threads do not inherit the value: `DynamicVariable` is based on `InheritableThreadLocal`, so a pool
+  * thread created during a computation would keep that computation's value for all tasks it runs later. Code that submits work to a thread pool must capture
+  * the values it needs and set them again in the task; see `EvaluationContext`.
+  */
+final class ScopedThreadLocal[T] {
+  private val local = new ThreadLocal[Option[T]] {
+    override def initialValue(): Option[T] = None
+  }
+
+  def value: Option[T] = local.get
+
+  def withValue[R](newValue: Option[T])(computation: => R): R = {
+    val previous = local.get
+    local.set(newValue)
+    try computation
+    finally local.set(previous)
+  }
+}
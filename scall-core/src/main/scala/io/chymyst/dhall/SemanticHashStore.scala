@@ -0,0 +1,233 @@
+package io.chymyst.dhall
+
+import java.io.InputStream
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable
+import scala.jdk.CollectionConverters.IteratorHasAsScala
+import scala.util.{Try, Using}
+
+/** A content-addressed store of CBOR-encoded Dhall expressions, kept in a single file in a Dhall cache directory. This is an alternative to the standard layout
+  * where each expression is stored in its own file named `1220<hash>`.
+  *
+  * The file consists of a header followed by records. Each record contains a marker, the 32 bytes of the SHA-256 hash, the length of the payload, and the CBOR
+  * payload. The file is memory-mapped for reading, and an index from hashes to payload positions is built by scanning the record headers. Payloads are returned
+  * as read-only slices of the mapped file, without copying. New records are appended under a file lock, so that several processes may share the same store. A
+  * truncated record at the end of the file (for example, after a crash) is ignored and overwritten by the next append.
+  *
+  * The store is used only in cache directories where the store file already exists. Use `SemanticHashStore.compact` to create or compact a store.
+  */
+final class SemanticHashStore private (val file: Path) {
+
+  import SemanticHashStore._
+
+  private var channel: FileChannel                   = _
+  private var fileKey: AnyRef                        = _
+  private var mapped: MappedByteBuffer               = _
+  private var scannedEnd: Long                       = 0L
+  private val index: mutable.Map[String, (Int, Int)] = mutable.HashMap() // Hex hash -> (payload offset, payload length).
+
+  openFile()
+
+  private def openFile(): Unit = {
+    if (channel != null) channel.close()
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+    fileKey = Files.readAttributes(file, classOf[java.nio.file.attribute.BasicFileAttributes]).fileKey
+    mapped = null
+    scannedEnd = 0L
+    index.clear()
+    if (channel.size == 0L) channel.write(ByteBuffer.wrap(fileHeader), 0L)
+    scan()
+  }
+
+  // Reopen the file if it was replaced by another process (for example, by compaction).
+  private def reopenIfReplaced(): Unit =
+    if (Try(Files.readAttributes(file, classOf[java.nio.file.attribute.BasicFileAttributes]).fileKey).toOption.exists(_ != fileKey)) openFile()
+
+  // Index all complete records after `scannedEnd`. Return the end position of the last complete record.
+  private def scan(): Long = {
+    val size     = math.min(channel.size, Int.MaxValue.toLong)
+    if (mapped == null || mapped.capacity < size) mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size)
+    if (scannedEnd == 0L) {
+      val header = new Array[Byte](fileHeader.length)
+      if (size < header.length) throw new Exception(s"Dhall cache store $file is too short")
+      mapped.duplicate().get(header)
+      if (!java.util.Arrays.equals(header, fileHeader)) throw new Exception(s"File $file is not a Dhall cache store")
+      scannedEnd = fileHeader.length.toLong
+    }
+    var position = scannedEnd.toInt
+    var complete = true
+    while (complete && position + recordHeaderLength <= size) {
+      val buffer = mapped.duplicate()
+      buffer.position(position)
+      if (buffer.getInt != recordMarker) complete = false
+      else {
+        val hash   = new Array[Byte](hashLength)
+        buffer.get(hash)
+        val length = buffer.getInt
+        val start  = position + recordHeaderLength
+        if (length < 0 || start.toLong + length > size) complete = false
+        else {
+          index.getOrElseUpdate(CBORmodel.CBytes.byteArrayToHexString(hash).toLowerCase, (start, length))
+          position = start + length
+        }
+      }
+    }
+    scannedEnd = position.toLong
+    scannedEnd
+  }
+
+  def size: Int = synchronized(index.size)
+
+  def contains(hashHex: String): Boolean = get(hashHex).isDefined
+
+  /** Return the CBOR payload stored under the given SHA-256 hash (as a hex string) as a read-only buffer. The payload is not copied and its hash is not
+    * verified.
+    */
+  def get(hashHex: String): Option[ByteBuffer] = synchronized {
+    val key = hashHex.toLowerCase
+    if (!index.contains(key)) {
+      reopenIfReplaced()
+      if (channel.size > scannedEnd) scan() // Another process may have appended new records.
+    }
+    index.get(key).map { case (offset, length) =>
+      val buffer = mapped.duplicate()
+      buffer.position(offset)
+      buffer.limit(offset + length)
+      buffer.slice().asReadOnlyBuffer()
+    }
+  }
+
+  // Append a record unless the store already contains the given hash. The caller is responsible for computing the correct hash.
+  def put(hashHex: String, payload: Array[Byte]): Unit = synchronized {
+    reopenIfReplaced()
+    val key = hashHex.toLowerCase
+    if (!index.contains(key)) {
+      val lock = channel.lock()
+      try {
+        val validEnd = scan()
+        if (!index.contains(key)) {
+          if (validEnd + recordHeaderLength + payload.length > Int.MaxValue)
+            throw new Exception(s"Dhall cache store $file is full, please run the compaction tool")
+          if (channel.size > validEnd) channel.truncate(validEnd)
+          val record   = ByteBuffer.allocate(recordHeaderLength + payload.length)
+          record.putInt(recordMarker).put(Grammar.hexStringToByteArray(key)).putInt(payload.length).put(payload).flip()
+          var position = validEnd
+          while (record.hasRemaining) position += channel.write(record, position)
+          channel.force(false)
+          scan()
+        }
+      } finally lock.release()
+    }
+  }
+
+  // The hashes of all records, in no particular order.
+  def hashes: Seq[String] = synchronized(index.keys.toSeq)
+
+  def close(): Unit = synchronized(channel.close())
+}
+
+object SemanticHashStore {
+  val fileName = "dhall-cache-store.bin"
+
+  private val fileHeader: Array[Byte] = "DHALLCS1".getBytes(StandardCharsets.US_ASCII)
+
+  private val recordMarker: Int = 0x44434852 // "DCHR"
+
+  private val hashLength = 32
+
+  private val recordHeaderLength = 4 + hashLength + 4
+
+  private val openStores = new ConcurrentHashMap[Path, SemanticHashStore]()
+
+  // The store in the given cache directory, if that directory contains a store file. Stores are opened once and kept open.
+  def existing(cacheRoot: Path): Option[SemanticHashStore] = {
+    val file = cacheRoot.resolve(fileName).toAbsolutePath.normalize
+    if (Files.isRegularFile(file)) Try(openStores.computeIfAbsent(file, new SemanticHashStore(_))).toOption else None
+  }
+
+  // Read a buffer as an `InputStream` without copying it.
+  def inputStream(buffer: ByteBuffer): InputStream = new InputStream {
+    private val data = buffer.duplicate()
+
+    override def read(): Int = if (data.hasRemaining) data.get & 0xff else -1
+
+    override def read(bytes: Array[Byte], offset: Int, length: Int): Int =
+      if (!data.hasRemaining) -1
+      else {
+        val count = math.min(length, data.remaining)
+        data.get(bytes, offset, count)
+        count
+      }
+
+    override def available(): Int = data.remaining
+  }
+
+  /** Summary of a compaction.
+    *
+    * @param records
+    *   Number of records in the compacted store.
+    * @param importedFiles
+    *   Number of records imported from files in the standard `1220<hash>` layout.
+    * @param droppedRecords
+    *   Number of records that were dropped because their payload did not match their hash.
+    */
+  final case class CompactionResult(records: Int, importedFiles: Int, droppedRecords: Int)
+
+  /** Create or compact the store in the given cache directory.
+    *
+    * The new store is written to a temporary file, which then replaces the old store. Records whose payload does not match their hash are dropped. Records that
+    * other processes append to the old store while it is being compacted are lost; they will be stored again when needed.
+    *
+    * @param cacheRoot
+    *   A Dhall cache directory, such as `~/.cache/dhall`.
+    * @param importFiles
+    *   If true, also add all valid files in the standard `1220<hash>` layout from that directory.
+    * @param deleteImportedFiles
+    *   If true, delete those files after they were added to the store.
+    */
+  def compact(cacheRoot: Path, importFiles: Boolean = true, deleteImportedFiles: Boolean = false): CompactionResult = {
+    val target    = cacheRoot.resolve(fileName).toAbsolutePath.normalize
+    val temporary = Files.createTempFile(cacheRoot, fileName, ".tmp")
+    var records   = 0
+    var imported  = 0
+    var dropped   = 0
+    val written   = mutable.HashSet[String]()
+    try {
+      Using.resource(FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) { output =>
+        output.write(ByteBuffer.wrap(fileHeader))
+        def append(hashHex: String, payload: ByteBuffer): Unit = if (!written.contains(hashHex)) {
+          if (Semantics.computeHash(payload) == hashHex) {
+            val header  = ByteBuffer.allocate(recordHeaderLength)
+            header.putInt(recordMarker).put(Grammar.hexStringToByteArray(hashHex)).putInt(payload.remaining).flip()
+            val buffers = Array(header, payload.duplicate())
+            while (buffers.exists(_.hasRemaining)) output.write(buffers)
+            written.add(hashHex)
+            records += 1
+          } else dropped += 1
+        }
+        existing(cacheRoot).foreach(store => store.hashes.sorted.foreach(hash => store.get(hash).foreach(append(hash, _))))
+        if (importFiles) {
+          val files = Using
+            .resource(Files.list(cacheRoot))(_.iterator.asScala.toList)
+            .filter(path => path.getFileName.toString.matches("1220[0-9a-fA-F]{64}"))
+            .sortBy(_.getFileName.toString)
+          files.foreach { path =>
+            val hashHex = path.getFileName.toString.drop(4).toLowerCase
+            val before  = records
+            Try(Files.readAllBytes(path)).foreach(bytes => append(hashHex, ByteBuffer.wrap(bytes)))
+            if (records > before) imported += 1
+            if (deleteImportedFiles && written.contains(hashHex)) Try(Files.delete(path))
+          }
+        }
+        output.force(true)
+      }
+      Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      Option(openStores.get(target)).foreach(store => store.synchronized(store.openFile()))
+    } finally Files.deleteIfExists(temporary)
+    CompactionResult(records, imported, dropped)
+  }
+}
@@ -15,7 +15,9 @@ import io.chymyst.tc.Applicative.ApplicativeOps
 import java.security.MessageDigest
 import java.util.regex.Pattern
 import scala.annotation.tailrec
+import scala.collection.mutable
 import scala.language.implicitConversions
+import scala.util.control.TailCalls.{TailRec, done, tailcall}
 
 object Semantics {
   // TODO: make sure this algorithm is correct for variables with de Bruijn indices!
@@ -36,98 +38,209 @@ object Semantics {
   def computeHash(bytes: Array[Byte]): String =
     CBytes.byteArrayToHexString(MessageDigest.getInstance("SHA-256").digest(bytes)).toLowerCase
 
+  // Compute the hash of the remaining bytes in `buffer` without copying them. The position of `buffer` is not changed.
+  def computeHash(buffer: java.nio.ByteBuffer): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(buffer.duplicate())
+    CBytes.byteArrayToHexString(digest.digest()).toLowerCase
+  }
+
   def semanticHash(expr: Expression, currentFile: java.nio.file.Path): String =
     computeHash(expr.resolveImports(currentFile).alphaNormalized.betaNormalized.toCBORmodel.encodeCbor2)
 
+  // The functions `shift`, `substitute`, and `alphaNormalize` recurse directly until this depth, and then continue with a slower but stack-safe implementation
+  // that uses `TailRec`. This keeps them fast for typical expressions while deeply nested expressions do not cause a stack overflow.
+  private val maxDirectRecursionDepth = 200
+
   // See https://github.com/dhall-lang/dhall-lang/blob/master/standard/shift.md
-  def shift(positive: Boolean, x: VarName, minIndex: Natural, expr: Expression): Expression = {
-    expr.scheme match {
-      case Variable(name, index) =>
-        val d = if (positive) 1 else -1
-        if (name != x || index < minIndex) expr else Variable(name, index + d)
+  // A positive shift by `amount` in one pass gives the same result as `amount` positive shifts by 1.
+  def shift(positive: Boolean, x: VarName, minIndex: Natural, expr: Expression, amount: Int = 1): Expression =
+    if (amount == 0) expr else shiftAt(if (positive) BigInt(amount) else -BigInt(amount), x, minIndex, expr, depth = 0)
+
+  private def shiftAt(delta: Natural, x: VarName, minIndex: Natural, expr: Expression, depth: Int): Expression =
+    if (depth >= maxDirectRecursionDepth) shiftTC(delta, x, minIndex, expr).result
+    else {
+      val deeper = depth + 1
+      expr.scheme match {
+        case Variable(name, index) =>
+          if (name != x || index < minIndex) expr else Variable(name, index + delta)
+
+        case Lambda(name, tipe, body) =>
+          val newMinIndex = if (name != x) minIndex else minIndex + 1
+          Lambda(name, shiftAt(delta, x, minIndex, tipe, deeper), shiftAt(delta, x, newMinIndex, body, deeper))
+
+        case Forall(name, tipe, body) =>
+          val newMinIndex = if (name != x) minIndex else minIndex + 1
+          Forall(name, shiftAt(delta, x, minIndex, tipe, deeper), shiftAt(delta, x, newMinIndex, body, deeper))
+
+        case Let(name, tipe, subst, body) =>
+          val newMinIndex = if (name != x) minIndex else minIndex + 1
+          Let(name, tipe.map(shiftAt(delta, x, minIndex, _, deeper)), shiftAt(delta, x, minIndex, subst, deeper), shiftAt(delta, x, newMinIndex, body, deeper))
+
+        case other => other.map(expression => shiftAt(delta, x, minIndex, expression, deeper))
+      }
+    }
 
-      case Lambda(name, tipe, body) =>
-        val newMinIndex = if (name != x) minIndex else minIndex + 1
-        Lambda(name, shift(positive, x, minIndex, tipe), shift(positive, x, newMinIndex, body))
+  private def shiftTC(delta: Natural, x: VarName, minIndex: Natural, expr: Expression): TailRec[Expression] = expr.scheme match {
+    case Variable(_, _) => done(shiftAt(delta, x, minIndex, expr, depth = 0))
 
-      case Forall(name, tipe, body) =>
-        val newMinIndex = if (name != x) minIndex else minIndex + 1
-        Forall(name, shift(positive, x, minIndex, tipe), shift(positive, x, newMinIndex, body))
+    case Lambda(name, tipe, body) =>
+      val newMinIndex = if (name != x) minIndex else minIndex + 1
+      for {
+        tipeS <- tailcall(shiftTC(delta, x, minIndex, tipe))
+        bodyS <- tailcall(shiftTC(delta, x, newMinIndex, body))
+      } yield Expression(Lambda(name, tipeS, bodyS))
 
-      case Let(name, tipe, subst, body) =>
-        val newMinIndex = if (name != x) minIndex else minIndex + 1
-        Let(name, tipe.map(shift(positive, x, minIndex, _)), shift(positive, x, minIndex, subst), shift(positive, x, newMinIndex, body))
+    case Forall(name, tipe, body) =>
+      val newMinIndex = if (name != x) minIndex else minIndex + 1
+      for {
+        tipeS <- tailcall(shiftTC(delta, x, minIndex, tipe))
+        bodyS <- tailcall(shiftTC(delta, x, newMinIndex, body))
+      } yield Expression(Forall(name, tipeS, bodyS))
 
-      case other => other.map(expression => shift(positive, x, minIndex, expression))
-    }
+    case Let(name, tipe, subst, body) =>
+      val newMinIndex = if (name != x) minIndex else minIndex + 1
+      for {
+        tipeS  <- optionTC(tipe)(t => shiftTC(delta, x, minIndex, t))
+        substS <- tailcall(shiftTC(delta, x, minIndex, subst))
+        bodyS  <- tailcall(shiftTC(delta, x, newMinIndex, body))
+      } yield Expression(Let(name, tipeS, substS, bodyS))
+
+    case other => other.mapTC(expression => shiftTC(delta, x, minIndex, expression)).map(Expression.apply)
+  }
+
+  private def optionTC(option: Option[Expression])(f: Expression => TailRec[Expression]): TailRec[Option[Expression]] = option match {
+    case Some(e) => tailcall(f(e)).map(Some(_))
+    case None    => done(None)
   }
 
   // See https://github.com/dhall-lang/dhall-lang/blob/master/standard/substitution.md
   // Report issue: The notation in the Haskell reference code is quite confusing. The names x, x', y need to be chosen more consistently.
-  def substitute(expr: Expression, substVar: VarName, substIndex: Natural, substTarget: Expression): Expression = expr.scheme match {
-    case Variable(name, index) => if (name == substVar && index == substIndex) substTarget else expr
+  def substitute(expr: Expression, substVar: VarName, substIndex: Natural, substTarget: Expression): Expression =
+    substituteAt(expr, substVar, substIndex, substTarget, depth = 0)
+
+  private def substituteAt(expr: Expression, substVar: VarName, substIndex: Natural, substTarget: Expression, depth: Int): Expression =
+    if (depth >= maxDirectRecursionDepth) substituteTC(expr, substVar, substIndex, substTarget).result
+    else {
+      val deeper = depth + 1
+      expr.scheme match {
+        case Variable(name, index) => if (name == substVar && index == substIndex) substTarget else expr
+
+        case Lambda(name, tipe, body) =>
+          val newIndex  = if (name != substVar) substIndex else substIndex + 1
+          val newType   = substituteAt(tipe, substVar, substIndex, substTarget, deeper)
+          val newTarget = shift(true, name, 0, substTarget)
+          val newBody   = substituteAt(body, substVar, newIndex, newTarget, deeper)
+          Lambda(name, newType, newBody)
+
+        case Forall(name, tipe, body) =>
+          val newIndex  = if (name != substVar) substIndex else substIndex + 1
+          val newType   = substituteAt(tipe, substVar, substIndex, substTarget, deeper)
+          val newTarget = shift(true, name, 0, substTarget)
+          val newBody   = substituteAt(body, substVar, newIndex, newTarget, deeper)
+          Forall(name, newType, newBody)
+
+        case Let(name, tipe, subst, body) =>
+          val newIndex  = if (name != substVar) substIndex else substIndex + 1
+          val newType   = tipe.map(substituteAt(_, substVar, substIndex, substTarget, deeper))
+          val newSubst  = substituteAt(subst, substVar, substIndex, substTarget, deeper)
+          val newTarget = shift(true, name, 0, substTarget)
+          val newBody   = substituteAt(body, substVar, newIndex, newTarget, deeper)
+          Let(name, newType, newSubst, newBody)
+
+        case other => other.map(expression => substituteAt(expression, substVar, substIndex, substTarget, deeper))
+      }
+    }
+
+  private def substituteTC(expr: Expression, substVar: VarName, substIndex: Natural, substTarget: Expression): TailRec[Expression] = expr.scheme match {
+    case Variable(name, index) => done(if (name == substVar && index == substIndex) substTarget else expr)
 
     case Lambda(name, tipe, body) =>
-      val newIndex  = if (name != substVar) substIndex else substIndex + 1
-      val newType   = substitute(tipe, substVar, substIndex, substTarget)
-      val newTarget = shift(true, name, 0, substTarget)
-      val newBody   = substitute(body, substVar, newIndex, newTarget)
-      Lambda(name, newType, newBody)
+      val newIndex = if (name != substVar) substIndex else substIndex + 1
+      for {
+        newType <- tailcall(substituteTC(tipe, substVar, substIndex, substTarget))
+        newBody <- tailcall(substituteTC(body, substVar, newIndex, shift(true, name, 0, substTarget)))
+      } yield Expression(Lambda(name, newType, newBody))
 
     case Forall(name, tipe, body) =>
-      val newIndex  = if (name != substVar) substIndex else substIndex + 1
-      val newType   = substitute(tipe, substVar, substIndex, substTarget)
-      val newTarget = shift(true, name, 0, substTarget)
-      val newBody   = substitute(body, substVar, newIndex, newTarget)
-      Forall(name, newType, newBody)
+      val newIndex = if (name != substVar) substIndex else substIndex + 1
+      for {
+        newType <- tailcall(substituteTC(tipe, substVar, substIndex, substTarget))
+        newBody <- tailcall(substituteTC(body, substVar, newIndex, shift(true, name, 0, substTarget)))
+      } yield Expression(Forall(name, newType, newBody))
 
     case Let(name, tipe, subst, body) =>
-      val newIndex  = if (name != substVar) substIndex else substIndex + 1
-      val newType   = tipe.map(substitute(_, substVar, substIndex, substTarget))
-      val newSubst  = substitute(subst, substVar, substIndex, substTarget)
-      val newTarget = shift(true, name, 0, substTarget)
-      val newBody   = substitute(body, substVar, newIndex, newTarget)
-      Let(name, newType, newSubst, newBody)
-
-    case other => other.map(expression => substitute(expression, substVar, substIndex, substTarget))
+      val newIndex = if (name != substVar) substIndex else substIndex + 1
+      for {
+        newType  <- optionTC(tipe)(substituteTC(_, substVar, substIndex, substTarget))
+        newSubst <- tailcall(substituteTC(subst, substVar, substIndex, substTarget))
+        newBody  <- tailcall(substituteTC(body, substVar, newIndex, shift(true, name, 0, substTarget)))
+      } yield Expression(Let(name, newType, newSubst, newBody))
+
+    case other => other.mapTC(expression => substituteTC(expression, substVar, substIndex, substTarget)).map(Expression.apply)
   }
 
-  def alphaNormalize(expr: Expression): Expression = cacheAlphaNormalize.getOrElseUpdate(expr, alphaNormalizeUncached(expr))
+  def alphaNormalize(expr: Expression): Expression = alphaNormalizeAt(expr, depth = 0)
+
+  private def alphaNormalizeAt(expr: Expression, depth: Int): Expression =
+    if (depth >= maxDirectRecursionDepth) alphaNormalizeTC(expr).result
+    else cacheAlphaNormalize.getOrElseUpdate(expr, alphaNormalizeUncached(expr, depth + 1))
+
+  // Rename the variable `name` bound in `body` to `_`.
+  private def renameToUnderscore(name: VarName, body: Expression): Expression = {
+    val body1 = shift(true, underscore, 0, body)
+    val body2 = substitute(body1, name, 0, Variable(underscore, 0))
+    shift(false, name, 0, body2)
+  }
 
   // See https://github.com/dhall-lang/dhall-lang/blob/master/standard/alpha-normalization.md
-  private def alphaNormalizeUncached(expr: Expression): Expression = expr.scheme match {
+  private def alphaNormalizeUncached(expr: Expression, depth: Int): Expression = expr.scheme match {
     case Variable(_, _) => expr
 
-    case Lambda(name, tipe, body) =>
-      if (name == underscore) expr.map(_.alphaNormalized)
-      else {
-        val body1 = shift(true, underscore, 0, body)
-        val body2 = substitute(body1, name, 0, Variable(underscore, 0))
-        val body3 = shift(false, name, 0, body2)
-        Lambda(underscore, tipe.alphaNormalized, body3.alphaNormalized)
-      }
+    case Lambda(name, tipe, body) if name != underscore =>
+      Lambda(underscore, alphaNormalizeAt(tipe, depth), alphaNormalizeAt(renameToUnderscore(name, body), depth))
 
-    case Forall(name, tipe, body) =>
-      if (name == underscore) expr.map(alphaNormalize)
-      else {
-        val body1 = shift(true, underscore, 0, body)
-        val body2 = substitute(body1, name, 0, Variable(underscore, 0))
-        val body3 = shift(false, name, 0, body2)
-        Forall(underscore, tipe.alphaNormalized, body3.alphaNormalized)
-      }
+    case Forall(name, tipe, body) if name != underscore =>
+      Forall(underscore, alphaNormalizeAt(tipe, depth), alphaNormalizeAt(renameToUnderscore(name, body), depth))
 
-    case Let(name, tipe, subst, body) =>
-      if (name == underscore) expr.map(alphaNormalize)
-      else {
-        val body1 = shift(true, underscore, 0, body)
-        val body2 = substitute(body1, name, 0, Variable(underscore, 0))
-        val body3 = shift(false, name, 0, body2)
-        Let(underscore, tipe.map(_.alphaNormalized), subst.alphaNormalized, body3.alphaNormalized)
-      }
+    case Let(name, tipe, subst, body) if name != underscore =>
+      Let(underscore, tipe.map(alphaNormalizeAt(_, depth)), alphaNormalizeAt(subst, depth), alphaNormalizeAt(renameToUnderscore(name, body), depth))
 
     case Import(_, _, _) => throw new Exception(s"alphaNormalize($expr): Unresolved imports cannot be alpha-normalized")
 
-    case other => other.map(_.alphaNormalized)
+    case other => other.map(alphaNormalizeAt(_, depth))
+  }
+
+  private def alphaNormalizeTC(expr: Expression): TailRec[Expression] = cacheAlphaNormalize.get(expr) match {
+    case Some(normalized) => done(normalized)
+    case None             =>
+      val normalizedTC: TailRec[Expression] = expr.scheme match {
+        case Variable(_, _) => done(expr)
+
+        case Lambda(name, tipe, body) if name != underscore =>
+          for {
+            tipeN <- tailcall(alphaNormalizeTC(tipe))
+            bodyN <- tailcall(alphaNormalizeTC(renameToUnderscore(name, body)))
+          } yield Expression(Lambda(underscore, tipeN, bodyN))
+
+        case Forall(name, tipe, body) if name != underscore =>
+          for {
+            tipeN <- tailcall(alphaNormalizeTC(tipe))
+            bodyN <- tailcall(alphaNormalizeTC(renameToUnderscore(name, body)))
+          } yield Expression(Forall(underscore, tipeN, bodyN))
+
+        case Let(name, tipe, subst, body) if name != underscore =>
+          for {
+            tipeN  <- optionTC(tipe)(alphaNormalizeTC)
+            substN <- tailcall(alphaNormalizeTC(subst))
+            bodyN  <- tailcall(alphaNormalizeTC(renameToUnderscore(name, body)))
+          } yield Expression(Let(underscore, tipeN, substN, bodyN))
+
+        case Import(_, _, _) => throw new Exception(s"alphaNormalize($expr): Unresolved imports cannot be alpha-normalized")
+
+        case other => other.mapTC(alphaNormalizeTC).map(Expression.apply)
+      }
+      normalizedTC.map(normalized => cacheAlphaNormalize.getOrElseUpdate(expr, normalized))
   }
 
   private def textShow(string: String): String = {
@@ -160,12 +273,24 @@ object Semantics {
   // Use this case class as a dictionary key for caching beta normalization, because the results are different depending on options.
   final case class ExprWithOptions(expr: Expression, options: BetaNormalizingOptions)
 
-  val cacheBetaNormalize = IdempotentCache("beta-normalization cache", ObservedCache.createCache[ExprWithOptions, ExprWithOptions](maxCacheSize))
+  // Normal forms are limited by their total size, measured as the number of subexpressions, so that a few huge normal forms cannot take up all the memory.
+  val maxCacheWeight: Long = ObservedCache.expressionNodesInHeapFraction(ObservedCache.normalFormsHeapFraction)
+
+  // These caches are taken from `AllCaches.current`, so that computations may use separate caches.
+  def cacheBetaNormalize: IdempotentCache[ExprWithOptions] = AllCaches.current.beta
 
-  val cacheAlphaNormalize = IdempotentCache("alpha-normalization cache", ObservedCache.createCache[Expression, Expression](maxCacheSize))
+  def cacheAlphaNormalize: IdempotentCache[Expression] = AllCaches.current.alpha
 
-  def betaNormalizeAndExpand(expr: Expression, options: BetaNormalizingOptions): Expression =
-    cacheBetaNormalize.getOrElseUpdate(ExprWithOptions(expr, options), ExprWithOptions(betaNormalizeUncached(expr, options).expr, options)).expr
+  def betaNormalizeAndExpand(expr: Expression, options: BetaNormalizingOptions): Expression = {
+    CancellationToken.checkCurrent()
+    if (options.normalizationByEvaluation)
+      cacheBetaNormalize
+        .getOrElseUpdate(
+          ExprWithOptions(expr, options),
+          ExprWithOptions(NormalizationByEvaluation.normalize(expr, options.copy(normalizationByEvaluation = false)), options),
+        ).expr
+    else cacheBetaNormalize.getOrElseUpdate(ExprWithOptions(expr, options), ExprWithOptions(betaNormalizeUncached(expr, options).expr, options)).expr
+  }
 
   /** Options for beta-normalization.
     *
@@ -184,6 +309,8 @@ object Semantics {
     * @param rewriteRecordIdentity
     *   Rewrite `{ a = x.a, b = x.b }` into `x` when `x` has the record type with fields `a`, `b`.
     * @param rewriteMergeOfMerge
+    * @param normalizationByEvaluation
+    *   Use the normalization-by-evaluation engine (see `NormalizationByEvaluation`) for variable binding and function application, instead of substitution.
     */
   final case class BetaNormalizingOptions(
     stopExpanding: Boolean = false,
@@ -196,6 +323,7 @@ object Semantics {
     rewriteMergeConstant: Boolean = false,
     rewriteMergeIdentity: Boolean = false,
     rewriteMergeOfMerge: Boolean = false,
+    normalizationByEvaluation: Boolean = false,
   )
 
   object BetaNormalizingOptions {
@@ -211,16 +339,112 @@ object Semantics {
     )
   }
 
-  private def betaNormalizeOrUnexpand(expr: Expression, options: BetaNormalizingOptions): Expression =
-    cacheBetaNormalize.get(ExprWithOptions(expr, options)) match {
-      case Some(normalized) => normalized.expr
-      case None             =>
-        val BNResult(normalized, didShortcut) = betaNormalizeUncached(expr, options)
-        if (didShortcut) {
-          //        println(s"DEBUG in normalizing $expr, after stopExpanding shortcut, do not cache the result $normalized")
-          normalized
-        } else cacheBetaNormalize.getOrElseUpdate(ExprWithOptions(expr, options), ExprWithOptions(normalized, options)).expr
+  /** Beta-normalize `Expression(scheme)`, where all immediate subexpressions of `scheme` are already beta-normalized with the same options. Those
+    * subexpressions are not beta-normalized again; only the top-level node is. This is used by `NormalizationByEvaluation` for the expression types that it
+    * does not evaluate by itself.
+    */
+  def betaNormalizeNode(scheme: ExpressionScheme[Expression], options: BetaNormalizingOptions): Expression = {
+    val expr       = Expression(scheme)
+    val knownForms = normalizerState.get.knownNormalForms
+    val added      = mutable.ArrayBuffer[Expression]()
+    expr.subexpressions.foreach { child =>
+      if (!knownForms.containsKey(child)) {
+        knownForms.put(child, ExprWithOptions(child, options))
+        added += child
+      }
     }
+    try betaNormalizeAndExpand(expr, options)
+    finally added.foreach(knownForms.remove)
+  }
+
+  private def betaNormalizeOrUnexpand(expr: Expression, options: BetaNormalizingOptions): Expression = {
+    val state = normalizerState.get
+    val known = state.knownNormalForms.get(expr)
+    if ((known ne null) && known.options == options) known.expr
+    else
+      cacheBetaNormalize.get(ExprWithOptions(expr, options)) match {
+        case Some(normalized) => normalized.expr
+        case None             =>
+          if (state.depth >= maxBetaNormalizeDepth) betaNormalizeStrictSubexpressionsFirst(expr, options)
+          else {
+            state.depth += 1
+            try betaNormalizeOrUnexpandUncached(expr, options)
+            finally state.depth -= 1
+          }
+      }
+  }
+
+  private def betaNormalizeOrUnexpandUncached(expr: Expression, options: BetaNormalizingOptions): Expression = {
+    val BNResult(normalized, didShortcut) = betaNormalizeUncached(expr, options)
+    if (didShortcut) {
+      //        println(s"DEBUG in normalizing $expr, after stopExpanding shortcut, do not cache the result $normalized")
+      normalized
+    } else cacheBetaNormalize.getOrElseUpdate(ExprWithOptions(expr, options), ExprWithOptions(normalized, options)).expr
+  }
+
+  private final class NormalizerState {
+    // The current nesting depth of `betaNormalizeOrUnexpand`.
+    var depth: Int       = 0
+    // Normal forms known to the computation that is running in this thread, keyed by the identity of the expression. See `betaNormalizeNode`.
+    val knownNormalForms = new java.util.IdentityHashMap[Expression, ExprWithOptions]()
+  }
+
+  private val normalizerState: ThreadLocal[NormalizerState] = ThreadLocal.withInitial[NormalizerState](() => new NormalizerState)
+
+  // When the nesting depth reaches this value, beta-normalization continues with `betaNormalizeStrictSubexpressionsFirst`.
+  private val maxBetaNormalizeDepth = 100
+
+  // The subexpressions that `betaNormalizeUncached` always beta-normalizes with the same options as `expr` itself.
+  private def strictSubexpressions(expr: Expression): Seq[Expression] = expr.scheme match {
+    case ExprOperator(_, Operator.Alternative, _)                                                              => Seq()
+    case ExprOperator(_, _, _) | EmptyList(_) | NonEmptyList(_) | KeywordSome(_) | Forall(_, _, _) | Assert(_) => expr.subexpressions
+    case TextLiteral(_, _) | RecordType(_) | RecordLiteral(_) | UnionType(_)                                   => expr.subexpressions
+    case Annotation(data, _)                                                                                   => Seq(data)
+    case _                                                                                                     => Seq()
+  }
+
+  /** Beta-normalize a deeply nested expression without a deep recursion on the JVM stack.
+    *
+    * The strict subexpressions of `expr` (see `strictSubexpressions`) are visited in post-order using a stack allocated on the heap, and each of them is
+    * beta-normalized after its own strict subexpressions. Those normal forms are kept in `knownNormalForms` until this pass is finished, so beta-normalizing
+    * the parent expression will find them there instead of recursing into them, even if the shared cache has evicted or rejected them. This is how long chains
+    * such as `a ++ b ++ c ++ ...` or `x # y # z # ...` are beta-normalized. The nesting depth is reset while this is done, because each subexpression is
+    * beta-normalized starting from a shallow stack.
+    */
+  private def betaNormalizeStrictSubexpressionsFirst(expr: Expression, options: BetaNormalizingOptions): Expression = {
+    val state                                                 = normalizerState.get
+    val knownForms                                            = state.knownNormalForms
+    val added                                                 = mutable.ArrayBuffer[Expression]()
+    val savedDepth                                            = state.depth
+    state.depth = 0
+    def remember(e: Expression, normalized: Expression): Unit = if (!knownForms.containsKey(e)) {
+      knownForms.put(e, ExprWithOptions(normalized, options))
+      added += e
+    }
+    try {
+      var result: Expression = null
+      val stack              = mutable.Stack[(Expression, Boolean)]((expr, false)) // The flag is true if the strict subexpressions were already visited.
+      while (stack.nonEmpty) {
+        val (e, visited) = stack.pop()
+        if (visited) {
+          CancellationToken.checkCurrent()
+          val normalized = betaNormalizeOrUnexpand(e, options)
+          if (e eq expr) result = normalized else remember(e, normalized)
+        } else if ((e eq expr) || !knownForms.containsKey(e)) {
+          cacheBetaNormalize.get(ExprWithOptions(e, options)) match {
+            case Some(cached) if e ne expr => remember(e, cached.expr) // Keep the cached normal form for this pass, in case the cache evicts it.
+            case _                         =>
+              stack.push((e, true))
+              strictSubexpressions(e).foreach(child => stack.push((child, false)))
+          }
+        }
+      }
+      result
+    } finally {
+      added.foreach(knownForms.remove)
+      state.depth = savedDepth
+    }
+  }
 
   private final case class BNResult(expr: Expression, didStopExpanding: Boolean = false)
 
@@ -760,14 +984,13 @@ object Semantics {
       case TextLiteral(_, _) =>
         lazy val TextLiteral(interpolationsN, trailing) = normalizeArgs
 
-        // TODO: replace this code by foldRight somehow?
-        def loop(t: TextLiteral[Expression]): TextLiteral[Expression] = t.interpolations match {
-          case (head, Expression(tl @ TextLiteral(_, _))) :: next => TextLiteral.ofString[Expression](head) ++ tl ++ loop(TextLiteral(next, t.trailing))
-          case (head, headExpr) :: next                           => TextLiteral(List((head, headExpr)), "") ++ loop(TextLiteral(next, t.trailing))
-          case Nil                                                => t
+        // Flatten nested text literals. This uses `foldRight` (which does not recurse on the JVM stack) because there may be many interpolations.
+        val flattened = interpolationsN.foldRight(TextLiteral.ofString[Expression](trailing)) {
+          case ((head, Expression(tl @ TextLiteral(_, _))), rest) => TextLiteral.ofString[Expression](head) ++ tl ++ rest
+          case ((head, headExpr), rest)                           => TextLiteral(List((head, headExpr)), "") ++ rest
         }
 
-        loop(TextLiteral(interpolationsN, trailing)) match {
+        flattened match {
           case TextLiteral(List(("", chunkN)), "") => chunkN
           case t                                   => t
         }
@@ -856,38 +1079,3 @@ object FreeVars {
     override def pure[A](a: A): FreeVars[A] = FreeVars(Set())
   }
 }
-
-/*
-// We need to define this as an applicative functor, but actually we will use this only with A = Expression.
-final case class UniqueReferences[A](run: mutable.Set[Expression] => (A, mutable.Set[Expression]))
-
-object UniqueReferences {
-  // Replace a given value by a unique reference if available. Otherwise update the dictionary of unique references.
-  def make(expression: Expression): UniqueReferences[Expression] = UniqueReferences { cache =>
-    val newExpression = cache.find(_ == expression).getOrElse {
-      cache.add(expression)
-      expression
-    }
-    (newExpression, cache)
-  }
-
-  implicit val ApplicativeUniqueReferences: Applicative[UniqueReferences] = new Applicative[UniqueReferences] {
-    override def zip[A, B](fa: UniqueReferences[A], fb: UniqueReferences[B]): UniqueReferences[(A, B)] = UniqueReferences(c =>
-      fa.run(c) match {
-        case (a, d) =>
-          fb.run(d) match {
-            case (b, e) => ((a, b), e)
-          }
-      }
-    )
-
-    override def map[A, B](f: A => B)(fa: UniqueReferences[A]): UniqueReferences[B] = UniqueReferences(prev =>
-      fa.run(prev) match {
-        case (a, dict) => (f(a), dict)
-      }
-    )
-
-    override def pure[A](a: A): UniqueReferences[A] = UniqueReferences(prev => (a, prev))
-  }
-}
- */
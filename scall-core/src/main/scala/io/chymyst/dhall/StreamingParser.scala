@@ -0,0 +1,233 @@
+package io.chymyst.dhall
+
+import io.chymyst.dhall.Syntax.Expression
+import io.chymyst.dhall.Syntax.ExpressionScheme.RecordLiteral
+import io.chymyst.dhall.SyntaxConstants.FieldName
+
+import java.io.{BufferedReader, InputStream, InputStreamReader, Reader}
+import java.nio.charset.StandardCharsets
+
+/** Parse a Dhall file whose top-level expression is a list literal `[ x, y, ... ]` or a record literal `{ a = x, b = y, ... }`, reading the input incrementally
+  * and parsing one element at a time.
+  *
+  * The input is split into elements by a lexical scanner that keeps track of brackets, text literals, text interpolations, quoted labels, and comments. Each
+  * element is then parsed separately by `Parser`. Only the text of the current element is kept in memory, so very large files can be processed if each element
+  * is small.
+  *
+  * The elements are parsed but not type-checked. A type annotation after the closing bracket (for example, `[] : List Natural`) is allowed and ignored. Other
+  * top-level expressions are not supported; use `Parser.parseDhallStream` for those.
+  */
+object StreamingParser {
+
+  // Parse the elements of a top-level list literal.
+  def listElements(input: InputStream): Iterator[Expression] = {
+    val scanner = new ElementScanner(reader(input), '[')
+    Iterator.continually(scanner.nextElement()).takeWhile(_.isDefined).map(text => Parser.parseToExpression(text.get))
+  }
+
+  // Parse the fields of a top-level record literal.
+  def recordFields(input: InputStream): Iterator[(FieldName, Expression)] = {
+    val scanner = new ElementScanner(reader(input), '{')
+    Iterator.continually(scanner.nextElement()).takeWhile(_.isDefined).flatMap { text =>
+      Parser.parseToExpression("{ " + text.get + " }").scheme match {
+        case RecordLiteral(defs) => defs
+        case other               => throw new Exception(s"Dhall streaming parser error: expected a record literal field, found '${text.get}'")
+      }
+    }
+  }
+
+  def foreachListElement(input: InputStream)(process: Expression => Unit): Unit = listElements(input).foreach(process)
+
+  def foreachRecordField(input: InputStream)(process: (FieldName, Expression) => Unit): Unit = recordFields(input).foreach { case (name, expr) =>
+    process(name, expr)
+  }
+
+  // U+FFFF is not a valid character in Dhall source code, so we use it to signal the end of input.
+  private val EOF: Char = '\uFFFF'
+
+  private def reader(input: InputStream): Reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))
+
+  private final class ElementScanner(reader: Reader, opening: Char) {
+    private val closing: Char = if (opening == '[') ']' else '}'
+
+    private var lookahead: Int = -2 // -2 means that no character was read ahead.
+
+    private var started  = false
+    private var finished = false
+
+    private def peek(): Char = {
+      if (lookahead == -2) lookahead = reader.read()
+      if (lookahead == -1) EOF else lookahead.toChar
+    }
+
+    private def next(): Char = {
+      val c = peek()
+      lookahead = -2
+      c
+    }
+
+    private def error(message: String): Nothing = throw new Exception(s"Dhall streaming parser error: $message")
+
+    // Return the text of the next non-empty element, or `None` after the closing bracket.
+    def nextElement(): Option[String] = {
+      if (!started) {
+        started = true
+        if (nextSignificant(allowShebang = true) != opening) error(s"expected the input to start with '$opening'")
+      }
+      var result: Option[String] = None
+      while (result.isEmpty && !finished) {
+        val text    = new java.lang.StringBuilder
+        copyCode(text) match {
+          case ','               =>
+          case c if c == closing =>
+            finished = true
+            nextSignificant(allowShebang = false) match {
+              case EOF =>
+              case ':' => // Ignore the type annotation.
+              case c   => error(s"unexpected '$c' after the closing '$closing'")
+            }
+          case EOF               => error(s"unexpected end of input, expected '$closing'")
+          case c                 => error(s"unexpected '$c'")
+        }
+        val element = text.toString.trim
+        if (element.nonEmpty && !(opening == '{' && element == "=")) result = Some(element)
+      }
+      result
+    }
+
+    // Skip whitespace and comments, and return the next character after them, or EOF at the end of input.
+    private def nextSignificant(allowShebang: Boolean): Char = {
+      var result: Option[Char] = None
+      while (result.isEmpty) next() match {
+        case ' ' | '\t' | '\n' | '\r' =>
+        case '#' if allowShebang      => skipLine()
+        case '-' if peek() == '-'     => skipLine()
+        case '{' if peek() == '-'     =>
+          next()
+          copyBlockComment(new java.lang.StringBuilder)
+        case c                        => result = Some(c)
+      }
+      result.get
+    }
+
+    private def skipLine(): Unit = while (peek() != '\n' && peek() != EOF) next()
+
+    // Copy code until an unmatched closing bracket or a comma at the top nesting level. Return that character without copying it, or EOF at the end.
+    private def copyCode(text: java.lang.StringBuilder): Char = {
+      var depth = 0
+      while (true) {
+        val c = next()
+        c match {
+          case EOF                    => return EOF
+          case '{' if peek() == '-'   =>
+            next()
+            copyBlockComment(text)
+          case '(' | '[' | '{'        =>
+            depth += 1
+            text.append(c)
+          case ')' | ']' | '}'        =>
+            if (depth == 0) return c
+            depth -= 1
+            text.append(c)
+          case ',' if depth == 0      => return c
+          case '"'                    =>
+            text.append('"')
+            copyDoubleQuoted(text)
+          case '\'' if peek() == '\'' =>
+            next()
+            text.append("''")
+            copySingleQuoted(text)
+          case '`'                    =>
+            text.append('`')
+            var q = next()
+            while (q != '`') {
+              if (q == EOF) error("unterminated quoted label")
+              text.append(q)
+              q = next()
+            }
+            text.append('`')
+          case '-' if peek() == '-'   =>
+            skipLine()
+            text.append('\n')
+          case _                      => text.append(c)
+        }
+      }
+      EOF
+    }
+
+    // The opening `{-` was already consumed. Block comments may be nested. The comment is replaced by a space.
+    private def copyBlockComment(text: java.lang.StringBuilder): Unit = {
+      var depth = 1
+      while (depth > 0) next() match {
+        case EOF                  => error("unterminated block comment")
+        case '{' if peek() == '-' =>
+          next()
+          depth += 1
+        case '-' if peek() == '}' =>
+          next()
+          depth -= 1
+        case _                    =>
+      }
+      text.append(' ')
+    }
+
+    // Copy the code of a text interpolation `${ ... }`, including the closing brace. The opening `${` was already copied.
+    private def copyInterpolation(text: java.lang.StringBuilder): Unit = {
+      var end = copyCode(text)
+      while (end == ',') {
+        text.append(',')
+        end = copyCode(text)
+      }
+      if (end != '}') error("unterminated text interpolation")
+      text.append('}')
+    }
+
+    // The opening quote was already copied.
+    private def copyDoubleQuoted(text: java.lang.StringBuilder): Unit = {
+      var done = false
+      while (!done) next() match {
+        case EOF                  => error("unterminated text literal")
+        case '\\'                 =>
+          text.append('\\')
+          val escaped = next()
+          if (escaped == EOF) error("unterminated text literal")
+          text.append(escaped)
+        case '"'                  =>
+          text.append('"')
+          done = true
+        case '$' if peek() == '{' =>
+          next()
+          text.append("${")
+          copyInterpolation(text)
+        case c                    => text.append(c)
+      }
+    }
+
+    // The opening `''` was already copied. Within a multi-line text literal, `'''` is an escaped `''` and `''${` is an escaped `${`.
+    private def copySingleQuoted(text: java.lang.StringBuilder): Unit = {
+      var done = false
+      while (!done) next() match {
+        case EOF                    => error("unterminated multi-line text literal")
+        case '\'' if peek() == '\'' =>
+          next()
+          peek() match {
+            case '\'' =>
+              next()
+              text.append("'''")
+            case '$'  =>
+              next()
+              text.append("''$")
+              if (peek() == '{') text.append(next())
+            case _    =>
+              text.append("''")
+              done = true
+          }
+        case '$' if peek() == '{'   =>
+          next()
+          text.append("${")
+          copyInterpolation(text)
+        case c                      => text.append(c)
+      }
+    }
+  }
+}
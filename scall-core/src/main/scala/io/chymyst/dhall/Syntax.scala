@@ -513,8 +513,10 @@ object Syntax {
     def traverseTC[H, F[_]](f: E => TailRec[F[H]])(implicit ev: Applicative[F]): TailRec[F[ExpressionScheme[H]]] = {
       type G[A] = TailRec[F[A]]
       implicit val ApplicativeG: Applicative[G] = new Applicative[G] {
+        // `seqSeq` zips long sequences from the left. Deferring `fa` with `tailcall` keeps the trampoline from composing all the continuations into one deeply
+        // nested function, which would take quadratic time and overflow the JVM stack for a long list.
         override def zip[A, B](fa: G[A], fb: G[B]): G[(A, B)] = for {
-          a <- fa
+          a <- tailcall(fa)
           b <- fb
         } yield ev.zip(a, b)
 
@@ -922,27 +924,57 @@ object Syntax {
     final case class ExprConstant(constant: SyntaxConstants.Constant) extends ExpressionScheme[Nothing] with VarPrecedence
   }
 
-  final case class Expression(scheme: ExpressionScheme[Expression]) {
-    lazy val exprCount: Int = {
-      implicit val monoidInt: Monoid[Int]                         = new Monoid[Int] {
-        override def empty: Int = 1
+  // The constructor is private so that all expressions are created via `Expression.apply` or `copy`, which go through the interner.
+  final case class Expression private (scheme: ExpressionScheme[Expression]) {
+    import scala.util.control.TailCalls._
 
-        override def combine(a: Int, b: Int): Int = a + b
-      }
-      implicit val monoidConst: Applicative[Monoid.Const[Int, *]] = Monoid.trivialApplicative[Int]
-      traverseRecursive[Monoid.Const[Int, *]] { a => 1 }.result
+    def copy(scheme: ExpressionScheme[Expression] = this.scheme): Expression = Expression(scheme)
+
+    // The expression count and the flag `containsImports` are computed once per node, like the hash code (see below), and without using the JVM stack.
+    // The value 0 means "not yet computed". Subexpressions whose values are already cached are not traversed again.
+    private var cachedExprCount: Int = 0
+
+    private def exprCountTC: TailRec[Int] =
+      if (cachedExprCount != 0) done(cachedExprCount)
+      else
+        scheme.traverseTC[Expression, Monoid.Const[Int, *]](e => tailcall(e.exprCountTC))(Expression.exprCountApplicative).map { result =>
+          cachedExprCount = result
+          result
+        }
+
+    def exprCount: Int = if (cachedExprCount != 0) cachedExprCount else exprCountTC.result
+
+    // The immediate subexpressions of this expression, in the order used by `traverse`.
+    def subexpressions: Seq[Expression] = {
+      implicit val monoidConst: Applicative[Monoid.Const[Seq[Expression], *]] = Monoid.trivialApplicative[Seq[Expression]]
+      scheme.traverse[Expression, Monoid.Const[Seq[Expression], *]](e => Seq(e))
     }
 
-    import scala.util.control.TailCalls._
+    private var cachedContainsImports: Byte = 0 // 1 means false, 2 means true.
+
+    private def containsImportsTC: TailRec[Boolean] =
+      if (cachedContainsImports != 0) done(cachedContainsImports == 2)
+      else {
+        val resultTC: TailRec[Boolean] = scheme match {
+          case Import(_, _, _) => done(true)
+          case _               => scheme.traverseTC[Expression, Monoid.Const[Boolean, *]](e => tailcall(e.containsImportsTC))(Expression.containsImportsApplicative)
+        }
+        resultTC.map { result =>
+          cachedContainsImports = if (result) 2 else 1
+          result
+        }
+      }
+
+    def containsImports: Boolean = if (cachedContainsImports != 0) cachedContainsImports == 2 else containsImportsTC.result
 
     def traverseRecursive[F[_]: Applicative](f: Expression => F[Expression]): TailRec[F[Expression]] =
       scheme.traverseTC[Expression, F](e => tailcall(e.traverseRecursive(f))).map(_.map(Expression.apply))
 
-    /*def uniqueSubexpressionReferences: Expression = {
-      val t: UniqueReferences[Expression] = traverseRecursive[UniqueReferences](UniqueReferences.make)
-      val u: (Expression, mutable.Set[Expression]) = t.run(mutable.Set())
-      u._1
-    }*/
+    // Rebuild this expression so that all its subexpressions are interned. Expressions created via `Expression(...)` are already interned.
+    def uniqueSubexpressionReferences: Expression = {
+      implicit val applicativeId: Applicative[Id] = ApplicativeId
+      traverseRecursive[Id](identity).result
+    }
 
     def resolveImports(currentFile: java.nio.file.Path = Paths.get("."), enableCache: Boolean = true): Expression =
       ImportResolution.resolveAllImports(this, currentFile, enableCache)
@@ -966,7 +998,6 @@ object Syntax {
     betaNormalizeUncached(expr, options) performs pattern-matching on expr and sometimes calls betaNormalizeOrUnexpand(expr, options) with different options.
     betaNormalizeOrUnexpand(expr, options) will again check the cache. If shortcut was taken, it will not cache the result.
     TODO: simplify that logic
-    TODO: make betaNormalize() stack-safe using TailRec
      */
 
     def typeCheckAndBetaNormalize(gamma: TypeCheck.KnownVars = TypeCheck.KnownVars.empty): TypecheckResult[Expression] =
@@ -1009,16 +1040,30 @@ object Syntax {
       */
     lazy val print: String = Syntax.print1(this)
 
-    private val dummyHashCode = 1234567890
+    // The structural hash code is computed once per node and then reused. The value 0 means "not yet computed", as in `java.lang.String`.
+    // Concurrent computations by different threads are harmless because they always store the same value.
+    private var cachedHashCode: Int = 0
 
     private def hashCodeTC: TailRec[Int] =
-      scheme
-        .mapTC[Int](e => tailcall(e.hashCodeTC)) // Produce TailRec[ExpressionScheme[Int]].
-        .map(_.hashCode)                         // Produce TailRec[Int] using non-recursive ExpressionScheme#hashCode().
+      if (cachedHashCode != 0) done(cachedHashCode)
+      else
+        scheme
+          .mapTC[Int](e =>
+            tailcall(e.hashCodeTC)
+          ) // Produce TailRec[ExpressionScheme[Int]]. Subexpressions whose hash code is already cached are not traversed.
+          .map { s => // Produce TailRec[Int] using non-recursive ExpressionScheme#hashCode().
+            val result = s.hashCode
+            cachedHashCode = result
+            result
+          }
 
     // We don't fail the test "avoid expanding Natural/fold" when hashCode is overloaded with tail recursion.
-    override def hashCode(): Int = {
-      hashCodeTC.result
+    override def hashCode(): Int = if (cachedHashCode != 0) cachedHashCode else hashCodeTC.result
+
+    // Expressions with different hash codes cannot be equal, so we compare hash codes (which are cached) before comparing the entire expression trees.
+    override def equals(other: Any): Boolean = other match {
+      case that: Expression => (this eq that) || (hashCode == that.hashCode && Expression.sameTrees(this, that))
+      case _                => false
     }
 
     override def toString: String = {
@@ -1137,8 +1182,45 @@ object Syntax {
   }
 
   object Expression {
+    // Hash-consing: structurally equal expressions created via `Expression(...)` are represented by the same JVM object.
+    // Interning is switched off by the system property `dhall.interning=false`, or by setting this flag at run time.
+    // Expressions created while interning is switched off are not interned later.
+    @volatile var enableInterning: Boolean = sys.props.get("dhall.interning").forall(value => !value.trim.equalsIgnoreCase("false"))
+
+    val interner: WeakInterner[Expression] = new WeakInterner[Expression]()
+
+    def apply(scheme: ExpressionScheme[Expression]): Expression =
+      if (enableInterning) interner.intern(new Expression(scheme)) else new Expression(scheme)
+
     implicit def toExpressionScheme(expression: Expression): ExpressionScheme[Expression] = expression.scheme
 
+    // Compare two expression trees node by node, using a stack allocated on the heap, so that comparing deeply nested expressions does not overflow the JVM
+    // stack. Identical subexpressions (such as interned ones) are not traversed.
+    private def sameTrees(x: Expression, y: Expression): Boolean = {
+      val pending = scala.collection.mutable.Stack[(Expression, Expression)]((x, y))
+      var same    = true
+      while (same && pending.nonEmpty) {
+        val (a, b) = pending.pop()
+        if (a ne b) {
+          same = a.hashCode == b.hashCode && a.scheme.map(_ => ()) == b.scheme.map(_ => ()) // Compare the top-level nodes without their subexpressions.
+          if (same) a.subexpressions.zip(b.subexpressions).foreach(pair => pending.push(pair))
+        }
+      }
+      same
+    }
+
+    private val exprCountApplicative: Applicative[Monoid.Const[Int, *]] = Monoid.trivialApplicative[Int](new Monoid[Int] {
+      override def empty: Int = 1
+
+      override def combine(a: Int, b: Int): Int = a + b
+    })
+
+    private val containsImportsApplicative: Applicative[Monoid.Const[Boolean, *]] = Monoid.trivialApplicative[Boolean](new Monoid[Boolean] {
+      override def empty: Boolean = false
+
+      override def combine(a: Boolean, b: Boolean): Boolean = a || b
+    })
+
     def v(name: String): Expression = Expression(Variable(VarName(name), 0))
   }
 
@@ -4,8 +4,13 @@ import io.chymyst.dhall.CBORmodel.CString
 import io.chymyst.dhall.Syntax.{DhallFile, Expression, ExpressionScheme}
 import io.chymyst.dhall.SyntaxConstants.FieldName
 
+import java.io.{BufferedWriter, OutputStream, OutputStreamWriter, StringWriter, Writer}
+import java.nio.charset.StandardCharsets
 import scala.annotation.tailrec
 
+/** Conversion of Dhall records to TOML. The value is checked completely before any output is written, and the output is then written directly to a `Writer` or
+  * to an `OutputStream`. So, nothing is written if the value cannot be converted.
+  */
 object Toml {
   final case class TomlOptions(indent: Int = 2)
 
@@ -14,91 +19,116 @@ object Toml {
 
   def toToml(dhallFile: DhallFile, tomlOptions: TomlOptions): Either[String, String] = toToml(dhallFile.value, tomlOptions)
 
-  @tailrec
   def toToml(expression: Expression, tomlOptions: TomlOptions = TomlOptions()): Either[String, String] = {
+    val writer = new StringWriter
+    writeToml(expression, tomlOptions, writer).map(_ => writer.toString)
+  }
+
+  @tailrec
+  def writeToml(expression: Expression, tomlOptions: TomlOptions, writer: Writer): Either[String, Unit] = {
     expression.scheme match {
-      case ExpressionScheme.Annotation(data: Expression, tipe)                => toToml(data, tomlOptions)
-      case ExpressionScheme.RecordLiteral(defs: Seq[(FieldName, Expression)]) => topLevelRecordToToml(defs)
-      case ExpressionScheme.KeywordSome(data)                                 => toToml(data, tomlOptions)
+      case ExpressionScheme.Annotation(data: Expression, tipe)                => writeToml(data, tomlOptions, writer)
+      case ExpressionScheme.RecordLiteral(defs: Seq[(FieldName, Expression)]) =>
+        val errors = defs.flatMap { case (_, expr) => unsupportedValues(expr) }
+        if (errors.nonEmpty) Left(errors.mkString("; "))
+        else {
+          writeTopLevelRecord(defs, writer)
+          writer.flush()
+          Right(())
+        }
+      case ExpressionScheme.KeywordSome(data)                                 => writeToml(data, tomlOptions, writer)
       case _                                                                  => Left(errorMessage(expression))
     }
   }
 
+  // Write TOML to `output` in UTF-8. The stream is flushed but not closed.
+  def writeToml(expression: Expression, tomlOptions: TomlOptions, output: OutputStream): Either[String, Unit] =
+    writeToml(expression, tomlOptions, new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)))
+
   private def isRecord(expression: Expression): Boolean = expression.scheme match {
     case ExpressionScheme.RecordLiteral(_) => true
     case _                                 => false
   }
 
-  private def exprToToml(expression: Expression, atTopLevel: Boolean): Either[String, String] = expression.scheme match {
+  // Error messages for all subexpressions that cannot be converted, in the order in which they would be written.
+  private def unsupportedValues(expression: Expression): Seq[String] = expression.scheme match {
+    case ExpressionScheme.EmptyList(_)           => Seq()
+    case ExpressionScheme.NonEmptyList(exprs)    => exprs.flatMap(unsupportedValues)
+    case ExpressionScheme.RecordLiteral(defs)    => defs.flatMap { case (_, expr) => unsupportedValues(expr) }
+    case ExpressionScheme.Annotation(data, tipe) => unsupportedValues(data)
+    case ExpressionScheme.DoubleLiteral(_) | ExpressionScheme.NaturalLiteral(_) | ExpressionScheme.IntegerLiteral(_) | ExpressionScheme.DateLiteral(_, _, _) |
+        ExpressionScheme.TimeLiteral(_, _, _, _) | ExpressionScheme.TimeZoneLiteral(_) =>
+      Seq()
+    case ExpressionScheme.TextLiteral(Nil, _)    => Seq()
 
-    case ExpressionScheme.EmptyList(_)           => Right("[]")
-    case ExpressionScheme.NonEmptyList(exprs)    =>
-      val converted = exprs.map(exprToToml(_, atTopLevel = false))
-      val errors    = converted.collect { case Left(x) => x }
-      if (errors.nonEmpty) Left(errors.mkString("; "))
-      else {
-        Right(converted.collect { case Right(x) => x }.mkString("[ ", ", ", " ]"))
+    case ExpressionScheme.KeywordSome(data)                                                                                           => unsupportedValues(data)
+    case ExpressionScheme.ExprConstant(SyntaxConstants.Constant.False) | ExpressionScheme.ExprConstant(SyntaxConstants.Constant.True) => Seq()
+    case _                                                                                                                            => Seq(errorMessage(expression))
+  }
+
+  // The expression must have been checked with `unsupportedValues`.
+  private def writeValue(expression: Expression, atTopLevel: Boolean, writer: Writer): Unit = expression.scheme match {
 
+    case ExpressionScheme.EmptyList(_)           => writer.write("[]")
+    case ExpressionScheme.NonEmptyList(exprs)    =>
+      writer.write("[ ")
+      exprs.zipWithIndex.foreach { case (expr, i) =>
+        if (i > 0) writer.write(", ")
+        writeValue(expr, atTopLevel = false, writer)
       }
+      writer.write(" ]")
     case ExpressionScheme.RecordLiteral(defs)    =>
-      val converted = defs.map { case (fieldName, expr) => tomlKeyValue(fieldName, expr) }
-      val errors    = converted.collect { case Left(x) => x }
-      if (errors.nonEmpty) Left(errors.mkString("; "))
-      else {
-        val convertedValues  = converted.collect { case Right(x) => x }
-        val (prefix, suffix) = if (atTopLevel) ("", "") else ("{\n", "\n}\n")
-        Right(convertedValues.mkString(prefix, "\n", suffix))
+      if (!atTopLevel) writer.write("{\n")
+      defs.zipWithIndex.foreach { case ((fieldName, expr), i) =>
+        if (i > 0) writer.write("\n")
+        writeKeyValue(fieldName, expr, writer)
       }
-    case ExpressionScheme.Annotation(data, tipe) => exprToToml(data, atTopLevel)
+      if (!atTopLevel) writer.write("\n}\n")
+    case ExpressionScheme.Annotation(data, tipe) => writeValue(data, atTopLevel, writer)
     case ExpressionScheme.DoubleLiteral(_) | ExpressionScheme.NaturalLiteral(_) | ExpressionScheme.IntegerLiteral(_) | ExpressionScheme.DateLiteral(_, _, _) |
         ExpressionScheme.TimeLiteral(_, _, _, _) | ExpressionScheme.TimeZoneLiteral(_) =>
-      Right(expression.print)
-    case ExpressionScheme.TextLiteral(Nil, str)  => Right(CString(str).toString)
+      writer.write(expression.print)
+    case ExpressionScheme.TextLiteral(Nil, str)  => writer.write(CString(str).toString)
 
-    case ExpressionScheme.KeywordSome(data)                                                                                           => exprToToml(data, atTopLevel)
+    case ExpressionScheme.KeywordSome(data)                                                                                           => writeValue(data, atTopLevel, writer)
     case ExpressionScheme.ExprConstant(SyntaxConstants.Constant.False) | ExpressionScheme.ExprConstant(SyntaxConstants.Constant.True) =>
-      Right(expression.print.toLowerCase)
-    case _                                                                                                                            => Left(errorMessage(expression))
+      writer.write(expression.print.toLowerCase)
+    case _                                                                                                                            => throw new Exception(errorMessage(expression))
   }
 
-  private def keyNameToToml(str: String): Either[String, String] = {
+  private def keyNameToToml(str: String): String = {
     // TODO: string escaping and/or errors
-    Right(str)
+    str
   }
 
-  private def tomlKeyValue(name: FieldName, expression: Expression): Either[String, String] = {
-    val converted = Seq(keyNameToToml(name.name), exprToToml(expression, atTopLevel = false))
-
-    val errors = converted.collect { case Left(x) => x }
-    if (errors.nonEmpty) Left(errors.mkString("; "))
-    else {
-      val Seq(tomlKey, tomlValue) = converted.collect { case Right(x) => x }
-      Right(s"$tomlKey = $tomlValue")
-    }
+  private def writeKeyValue(name: FieldName, expression: Expression, writer: Writer): Unit = {
+    writer.write(keyNameToToml(name.name))
+    writer.write(" = ")
+    writeValue(expression, atTopLevel = false, writer)
   }
 
   def tomlTable(name: FieldName, expression: Expression): Either[String, String] = {
-    val converted = Seq(keyNameToToml(name.name), exprToToml(expression, atTopLevel = true))
-
-    val errors = converted.collect { case Left(x) => x }
+    val errors = unsupportedValues(expression)
     if (errors.nonEmpty) Left(errors.mkString("; "))
     else {
-      val Seq(tomlKey, tomlValue) = converted.collect { case Right(x) => x }
-      Right(s"[$tomlKey]\n$tomlValue")
+      val writer = new StringWriter
+      writeTable(name, expression, writer)
+      Right(writer.toString)
     }
   }
 
-  private def topLevelRecordToToml(defs: Seq[(FieldName, Expression)]): Either[String, String] = {
+  private def writeTable(name: FieldName, expression: Expression, writer: Writer): Unit = {
+    writer.write("[" + keyNameToToml(name.name) + "]\n")
+    writeValue(expression, atTopLevel = true, writer)
+  }
+
+  private def writeTopLevelRecord(defs: Seq[(FieldName, Expression)], writer: Writer): Unit = {
     // If a record value is not itself a nested record, it is printed as key = value.
     // We are at top level. Replace each nested record by a TOML "table".
-    val converted: Seq[Either[String, String]] = defs.map { case (fieldName, expr) =>
-      if (isRecord(expr)) {
-        tomlTable(fieldName, expr)
-      } else {
-        tomlKeyValue(fieldName, expr)
-      }
+    defs.foreach { case (fieldName, expr) =>
+      if (isRecord(expr)) writeTable(fieldName, expr, writer) else writeKeyValue(fieldName, expr, writer)
+      writer.write("\n")
     }
-    val errors                                 = converted.collect { case Left(x) => x }
-    if (errors.nonEmpty) Left(errors.mkString("; ")) else Right(converted.collect { case Right(x) => x }.mkString("", "\n", "\n"))
+    if (defs.isEmpty) writer.write("\n")
   }
 }
@@ -8,6 +8,8 @@ import io.chymyst.dhall.TypeCheck.KnownVars
 import io.chymyst.dhall.TypecheckResult._
 import io.chymyst.tc.Applicative
 
+import java.util.concurrent.ConcurrentHashMap
+import scala.annotation.tailrec
 import scala.language.{implicitConversions, postfixOps}
 
 sealed trait TypecheckResult[+A] {
@@ -46,7 +48,7 @@ object TypecheckResult {
         case expression: Expression               => expression
         case _                                    => Expression(TextLiteral.ofString("unknown Dhall expression"))
       }
-      typeError(s"Unexpected expression $expr under filter")(KnownVars(Map()), ExpressionUnderTypeInference(expressionForError))
+      typeError(s"Unexpected expression $expr under filter")(KnownVars.empty, ExpressionUnderTypeInference(expressionForError))
     }
   }
 
@@ -83,38 +85,76 @@ object TypecheckResult {
 }
 
 object TypeCheck {
-  val emptyContext = KnownVars(Map())
+  val emptyContext = KnownVars.empty
 
   val maxCacheSize: Option[Int] = Some(1000000) // Specify `None` for no limit.
 
-  val cacheTypeCheck =
-    new ObservedCache("Type-checking cache", ObservedCache.createCache[(KnownVars, ExpressionScheme[Expression]), TypecheckResult[Expression]](maxCacheSize))
+  // This cache is taken from `AllCaches.current`, so that computations may use separate caches.
+  def cacheTypeCheck: ObservedCache[(KnownVars, ExpressionScheme[Expression]), TypecheckResult[Expression]] = AllCaches.current.gamma
 
   type TypeCheckErrors = Seq[String] // Non-empty list.
 
   object KnownVars {
-    def empty: KnownVars = KnownVars(Map())
+    val empty: KnownVars = new KnownVars(Nil, 0)
   }
 
   // This data structure is denoted by Γ in the math notation. This can be used as a "context" for type-checking and for evaluation.
-  final case class KnownVars(variables: Map[VarName, IndexedSeq[Expression]]) {
-    def lookup(variable: Variable): Option[Expression] = variables.get(variable.name).flatMap { exprs =>
-      if (variable.index.isValidInt) exprs.lift(variable.index.intValue) else None
+  // The context is a persistent stack of variable names with their types, the most recently added variable first.
+  // The math notation `shift(1, x, 0, Γ)` requires shifting all types in the context when a new variable `x` is added.
+  // Instead, we store each type as it was when it was added and apply the pending shifts only when a variable is looked up.
+  // So, `prependAndShift` takes constant time, and contexts can share their tails.
+  final class KnownVars private (private val entries: List[(VarName, Expression)], private val cachedHashCode: Int) {
+    // Shifted types that were already looked up in this context. A context is immutable, so the shifted type of each variable is computed at most once.
+    private lazy val shiftedTypes = new ConcurrentHashMap[Variable, Option[Expression]]()
+
+    def lookup(variable: Variable): Option[Expression] = {
+      val cached = shiftedTypes.get(variable)
+      if (cached ne null) cached
+      else {
+        val result = lookupAndShift(variable)
+        shiftedTypes.put(variable, result)
+        result
+      }
     }
 
-    // Important: the expressions must be prepended to the list even though the math notation is `(Γ0, x : A1)`.
-    // This is because a de Bruijn index increases to the left in the list.
-    private def prepend(varName: VarName, tipe: Expression) = KnownVars(variables.updatedWith(varName) {
-      case Some(exprs) =>
-        // println(s"DEBUG: prepending ${varName.name} : ${expr.print} to ${exprs.map{_.print}.mkString("[", ", ", "]")} in $this")
-        Some(tipe +: exprs)
-      case None        => Some(IndexedSeq(tipe))
-    })
+    private def lookupAndShift(variable: Variable): Option[Expression] = if (variable.index.isValidInt) {
+      // The number of times each variable name was added after the variable we are looking for, counting that variable itself.
+      @tailrec def loop(rest: List[(VarName, Expression)], remaining: Int, shifts: Map[VarName, Int]): Option[Expression] = rest match {
+        case Nil                  => None
+        case (name, tipe) :: tail =>
+          val newShifts = shifts.updated(name, shifts.getOrElse(name, 0) + 1)
+          if (name != variable.name) loop(tail, remaining, newShifts)
+          else if (remaining > 0) loop(tail, remaining - 1, newShifts)
+          else Some(shiftAll(tipe, newShifts))
+      }
+
+      loop(entries, variable.index.intValue, Map())
+    } else None
 
-    private def mapExpr(f: Expression => Expression): KnownVars = KnownVars(variables.map { case (name, exprs) => (name, exprs.map(f)) })
+    private def shiftAll(tipe: Expression, shifts: Map[VarName, Int]): Expression = shifts.foldLeft(tipe) { case (expr, (name, count)) =>
+      Semantics.shift(true, name, 0, expr, amount = count)
+    }
 
+    // Important: the expressions must be prepended to the list even though the math notation is `(Γ0, x : A1)`.
+    // This is because a de Bruijn index increases to the left in the list.
     def prependAndShift(varName: VarName, tipe: Expression): KnownVars =
-      prepend(varName, tipe).mapExpr(Semantics.shift(true, varName, 0, _))
+      new KnownVars((varName, tipe) :: entries, 31 * (31 * cachedHashCode + varName.hashCode) + tipe.hashCode)
+
+    // All variables with their (shifted) types, in the same order as they would be looked up. Variable names are listed in the order they were first added.
+    def variables: Map[VarName, IndexedSeq[Expression]] = entries.reverse
+      .map(_._1).distinct.map { name =>
+        (name, LazyList.from(0).map(i => lookup(Variable(name, i))).takeWhile(_.nonEmpty).flatten.toIndexedSeq)
+      }.toMap
+
+    // Contexts are equal when they have the same variables with equal stored types in the same order. Such contexts have equal shifted types.
+    // The converse does not hold: adding variables with different names in a different order gives different stored types but may give the same shifted
+    // types. The type-checking cache then stores such contexts separately. This may cause some extra cache misses but never gives a wrong result.
+    override def hashCode(): Int = cachedHashCode
+
+    override def equals(other: Any): Boolean = other match {
+      case that: KnownVars => (this eq that) || (cachedHashCode == that.cachedHashCode && entries == that.entries)
+      case _               => false
+    }
 
     override def toString: String = variables
       .flatMap { case (varName, exprs) =>
@@ -145,7 +185,10 @@ object TypeCheck {
   val underscore: Expression = Expression(Variable(ExpressionScheme.underscore, BigInt(0)))
 
   // Infer the type of a given expression (not necessarily in beta-normalized form). If no errors, return Right(tipe) that fits gamma |- expr : tipe.
-  def inferType(gamma: KnownVars, expr: Expression): TypecheckResult[Expression] = cacheTypeCheck.getOrElseUpdate((gamma, expr), inferTypeOrCached(gamma, expr))
+  def inferType(gamma: KnownVars, expr: Expression): TypecheckResult[Expression] = {
+    CancellationToken.checkCurrent()
+    cacheTypeCheck.getOrElseUpdate((gamma, expr), inferTypeOrCached(gamma, expr))
+  }
 
   private def inferTypeOrCached(gamma: KnownVars, exprToInferTypeOf: Expression): TypecheckResult[Expression] = {
     //    println(s"DEBUG: ${LocalDateTime.now} inferType(${exprToInferTypeOf.print})")
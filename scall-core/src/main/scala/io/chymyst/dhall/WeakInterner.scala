@@ -0,0 +1,40 @@
+package io.chymyst.dhall
+
+import java.lang.ref.WeakReference
+import java.util
+
+/** A table of canonical instances for "hash-consing": `intern(x)` returns a previously interned value equal to `x` if one exists, or else stores and returns
+  * `x` itself. Equal values will then be represented by the same JVM object, so that equality can be decided by reference comparison.
+  *
+  * The table holds only weak references, so values that are not used elsewhere will be removed by the garbage collector. The table is split into stripes with
+  * separate locks, so that threads interning different values rarely wait for each other.
+  *
+  * @param stripeCount
+  *   Number of independently locked stripes.
+  */
+final class WeakInterner[A <: AnyRef](stripeCount: Int = 64) {
+  require(stripeCount > 0)
+
+  private val stripes: Array[util.WeakHashMap[A, WeakReference[A]]] = Array.fill(stripeCount)(new util.WeakHashMap[A, WeakReference[A]])
+
+  private def stripeFor(value: A): util.WeakHashMap[A, WeakReference[A]] = {
+    val hash = value.hashCode
+    stripes(Math.floorMod(hash ^ (hash >>> 16), stripeCount))
+  }
+
+  def intern(value: A): A = {
+    val stripe = stripeFor(value)
+    stripe.synchronized {
+      Option(stripe.get(value)).flatMap(ref => Option(ref.get)) match {
+        case Some(canonical) => canonical
+        case None            =>
+          stripe.put(value, new WeakReference(value))
+          value
+      }
+    }
+  }
+
+  def size: Int = stripes.map(stripe => stripe.synchronized(stripe.size)).sum
+
+  def clear(): Unit = stripes.foreach(stripe => stripe.synchronized(stripe.clear()))
+}
@@ -0,0 +1,163 @@
+package io.chymyst.dhall
+
+import java.util
+import scala.collection.mutable
+import scala.jdk.CollectionConverters.IteratorHasAsScala
+
+/** A cache bounded by the total weight of its entries, with a W-TinyLFU eviction policy. This class is not thread-safe.
+  *
+  * New entries are first stored in a small "window" LRU cache. When the window overflows, its least recently used entry becomes a candidate for the main LRU
+  * cache. The candidate is admitted only if it was requested more often than all the entries that would have to be evicted from the main cache to make room for
+  * it, or as often but is not heavier than them. Request frequencies are estimated by a count-min sketch whose counters are periodically halved, so that old
+  * popularity decays. In this way, a few heavy entries that were used once cannot evict many light entries that are used often.
+  *
+  * @param maxEntries
+  *   Maximum number of entries.
+  * @param maxWeight
+  *   Maximum total weight of all entries. Entries heavier than this are never stored.
+  * @param weigh
+  *   Weight of an entry. Weights smaller than 1 are counted as 1.
+  */
+final class WeightedCache[K, V](maxEntries: Int, maxWeight: Long, weigh: (K, V) => Long) extends mutable.Map[K, V] with EvictionCounter {
+  require(maxEntries > 0 && maxWeight > 0)
+
+  private final class Entry(val value: V, val weight: Long)
+
+  private final class Segment(val maxEntries: Int, val maxWeight: Long) {
+    val entries: util.LinkedHashMap[K, Entry] = new util.LinkedHashMap[K, Entry](16, 0.75f, true)
+    var weight: Long                          = 0L
+
+    def overflows(extraEntries: Int, extraWeight: Long): Boolean = entries.size + extraEntries > maxEntries || weight + extraWeight > maxWeight
+
+    def put(key: K, entry: Entry): Unit = {
+      entries.put(key, entry)
+      weight += entry.weight
+    }
+
+    def remove(key: K): Option[Entry] = {
+      val removed = Option(entries.remove(key))
+      removed.foreach(entry => weight -= entry.weight)
+      removed
+    }
+  }
+
+  // The window gets about 1% of the capacity, as in the W-TinyLFU policy.
+  private val window = new Segment(math.max(1, maxEntries / 100), math.max(1L, maxWeight / 100))
+  private val main   = new Segment(math.max(1, maxEntries - window.maxEntries), math.max(1L, maxWeight - window.maxWeight))
+
+  private val sketch = new FrequencySketch(math.min(maxEntries.toLong, maxWeight).toInt)
+
+  private var evictionCount: Long = 0L
+
+  override def evictions: Long = evictionCount
+
+  def totalWeight: Long = window.weight + main.weight
+
+  override def get(key: K): Option[V] = {
+    sketch.increment(key)
+    peek(key)
+  }
+
+  // Look up a key without counting a request in the frequency sketch.
+  def peek(key: K): Option[V] = Option(window.entries.get(key)).orElse(Option(main.entries.get(key))).map(_.value)
+
+  override def addOne(elem: (K, V)): WeightedCache.this.type = {
+    putWeighed(elem._1, elem._2, weigh(elem._1, elem._2))
+    this
+  }
+
+  // Store an entry whose weight was already computed. This allows callers to weigh entries before taking a lock that protects this cache.
+  def putWeighed(key: K, value: V, entryWeight: Long): Unit = {
+    val weight = math.max(1L, entryWeight)
+    window.remove(key) orElse main.remove(key)
+    if (weight > main.maxWeight) evictionCount += 1
+    else {
+      window.put(key, new Entry(value, weight))
+      while (!window.entries.isEmpty && window.overflows(0, 0)) {
+        val eldest = window.entries.entrySet.iterator.next()
+        window.remove(eldest.getKey)
+        offerToMain(eldest.getKey, eldest.getValue)
+      }
+    }
+  }
+
+  private def offerToMain(candidate: K, entry: Entry): Unit = {
+    val candidateFrequency = sketch.frequency(candidate)
+    val victims            = mutable.ArrayBuffer[K]()
+    var freedEntries       = 0
+    var freedWeight        = 0L
+    val iterator           = main.entries.entrySet.iterator
+    var admit              = true
+    while (admit && main.overflows(1 - freedEntries, entry.weight - freedWeight) && iterator.hasNext) {
+      val victim          = iterator.next()
+      val victimFrequency = sketch.frequency(victim.getKey)
+      // On a tie, the more recently used candidate wins unless it is heavier than the victim. Otherwise, when all entries are equally frequent (for example,
+      // all were used once), the main cache would keep its oldest entries forever.
+      if (victimFrequency > candidateFrequency || (victimFrequency == candidateFrequency && entry.weight > victim.getValue.weight)) admit = false
+      else {
+        victims += victim.getKey
+        freedEntries += 1
+        freedWeight += victim.getValue.weight
+      }
+    }
+    if (admit) {
+      victims.foreach(main.remove)
+      main.put(candidate, entry)
+      evictionCount += victims.size
+    } else evictionCount += 1
+  }
+
+  override def iterator: Iterator[(K, V)] =
+    (window.entries.entrySet.iterator.asScala ++ main.entries.entrySet.iterator.asScala).map(entry => (entry.getKey, entry.getValue.value))
+
+  override def subtractOne(elem: K): WeightedCache.this.type = {
+    window.remove(elem) orElse main.remove(elem)
+    this
+  }
+
+  override def size: Int = window.entries.size + main.entries.size
+
+  override def knownSize: Int = size
+}
+
+// A count-min sketch with 4 rows of 4-bit counters, as used by TinyLFU. All counters are halved after a number of increments proportional to the width.
+private final class FrequencySketch(expectedSize: Int) {
+  private val width: Int = Integer.highestOneBit(math.min(math.max(expectedSize, 16), 1 << 14) - 1) << 1
+
+  private val table = new Array[Byte](4 * width)
+
+  private val sampleSize = 10 * width
+
+  private var additions = 0
+
+  private val seeds = Array(0x97cb3127, 0x6b2f5b6d, 0xc2b2ae35, 0x85ebca6b)
+
+  private def index(hash: Int, row: Int): Int = {
+    val h = (hash ^ seeds(row)) * 0x9e3779b9
+    row * width + ((h ^ (h >>> 16)) & (width - 1))
+  }
+
+  def increment(key: Any): Unit = {
+    val hash  = key.hashCode
+    var added = false
+    (0 until 4).foreach { row =>
+      val i = index(hash, row)
+      if (table(i) < 15) {
+        table(i) = (table(i) + 1).toByte
+        added = true
+      }
+    }
+    if (added) {
+      additions += 1
+      if (additions >= sampleSize) {
+        table.indices.foreach(i => table(i) = (table(i) >> 1).toByte)
+        additions /= 2
+      }
+    }
+  }
+
+  def frequency(key: Any): Int = {
+    val hash = key.hashCode
+    (0 until 4).map(row => table(index(hash, row)).toInt).min
+  }
+}
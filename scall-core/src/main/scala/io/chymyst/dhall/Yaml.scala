@@ -5,6 +5,9 @@ import io.chymyst.dhall.Syntax.ExpressionScheme.{ExprBuiltin, RecordLiteral, Tex
 import io.chymyst.dhall.Syntax.{DhallFile, Expression, ExpressionScheme}
 import io.chymyst.dhall.SyntaxConstants.{Builtin, FieldName}
 
+import java.io.{BufferedWriter, OutputStream, OutputStreamWriter, StringWriter, Writer}
+import java.nio.charset.StandardCharsets
+
 /** Conversion of Dhall values to Yaml is supported for numbers, strings, date/time values, lists, records, and union types, arbitrarily nested. Other types or
   * kinds are not supported and will give an error when converting to Yaml.
   *
@@ -84,6 +87,9 @@ import io.chymyst.dhall.SyntaxConstants.{Builtin, FieldName}
   *        c: 1
   *        d: 2
   * }}}
+  *
+  * The type of the Dhall value is inferred once, and the types of all nested values are derived from it. The value is checked completely before any output is
+  * written, so that nothing is written if the value cannot be converted. Lines are then written directly to a `Writer` or to an `OutputStream`.
   */
 object Yaml {
   def yamlIndent(indent: Int) = " " * indent
@@ -97,174 +103,269 @@ object Yaml {
   case object YPrimitive extends LineType
   case object YNull      extends LineType
 
-  final case class YamlLines(ltype: LineType, lines: Seq[String])
-
   sealed trait RecordIsDate
   case object RecordIsDateTime         extends RecordIsDate
   case object RecordIsDateTimeWithZone extends RecordIsDate
 
-  // This function should ignore options.createDocuments because it is used recursively for sub-document Yaml values.
-  private def toYamlLines(expr: Expression, options: YamlOptions): Either[String, YamlLines] = {
-    val format = if (options.jsonFormat) "JSON" else "YAML"
-    expr.inferType match {
-      case TypecheckResult.Invalid(errors) => Left(errors.toString)
-      case TypecheckResult.Valid(tpe)      =>
-        // Check if it has type List { mapKey : Text, mapValue : _ }.
-        lazy val isRecordMap                           = tpe.scheme match {
-          case ExpressionScheme.Application(Expression(ExprBuiltin(Builtin.List)), Expression(ExpressionScheme.RecordType(defs))) =>
-            val fieldMap: Map[FieldName, Expression] = defs.toMap
-            fieldMap.keySet == Set(FieldName("mapKey"), FieldName("mapValue")) && fieldMap(FieldName("mapKey")) == Expression(ExprBuiltin(Builtin.Text))
-
-          case _ => false
+  // Check if `tpe` is the type List { mapKey : Text, mapValue : _ }. If so, return the type of `mapValue`.
+  private def recordMapValueType(tpe: Expression): Option[Expression] = tpe.scheme match {
+    case ExpressionScheme.Application(Expression(ExprBuiltin(Builtin.List)), Expression(ExpressionScheme.RecordType(defs))) =>
+      val fieldMap: Map[FieldName, Expression] = defs.toMap
+      if (fieldMap.keySet == Set(FieldName("mapKey"), FieldName("mapValue")) && fieldMap(FieldName("mapKey")) == Expression(ExprBuiltin(Builtin.Text)))
+        fieldMap.get(FieldName("mapValue"))
+      else None
+
+    case _ => None
+  }
+
+  // Check if `tpe` is the type { date : Date, time : Time } or { date : Date, time : Time, timeZone : TimeZone }.
+  private def timestampRecord(tpe: Expression): Option[RecordIsDate] = tpe.scheme match {
+    case ExpressionScheme.RecordType(defs) =>
+      val fieldMap: Map[FieldName, Expression]         = defs.toMap
+      def has(name: String, builtin: Builtin): Boolean = fieldMap.get(FieldName(name)).contains(Expression(ExprBuiltin(builtin)))
+      if (fieldMap.size == 2 && has("date", Builtin.Date) && has("time", Builtin.Time)) Some(RecordIsDateTime)
+      else if (fieldMap.size == 3 && has("date", Builtin.Date) && has("time", Builtin.Time) && has("timeZone", Builtin.TimeZone)) Some(RecordIsDateTimeWithZone)
+      else None
+
+    case _ => None
+  }
+
+  // The types of subexpressions, derived from the type of their parent expression.
+  private def recordFieldTypes(tpe: Expression): Map[FieldName, Expression] = tpe.scheme match {
+    case ExpressionScheme.RecordType(defs) => defs.toMap
+    case _                                 => Map()
+  }
+
+  private def builtinArgumentType(builtin: Builtin, tpe: Expression): Option[Expression] = tpe.scheme match {
+    case ExpressionScheme.Application(Expression(ExprBuiltin(`builtin`)), t) => Some(t)
+    case _                                                                   => None
+  }
+
+  /** The result of checking a value before writing it.
+    *
+    * @param ltype
+    *   The kind of Yaml lines that the value will produce.
+    * @param isEmpty
+    *   True if the value will produce no lines at all.
+    * @param errors
+    *   Error messages, in the order of the traversal of the value.
+    */
+  private final case class Checked(ltype: LineType, isEmpty: Boolean, errors: Vector[String])
+
+  // Each value is written as lines. The first line starts with `firstPrefix`, other lines start with `prefix`, and `suffix` is appended to the last line.
+  private final class Emitter(options: YamlOptions, writer: Writer) {
+    private val format = if (options.jsonFormat) "JSON" else "YAML"
+
+    private val indent = yamlIndent(options.indent)
+
+    private val afterName = ":" + yamlIndent(math.max(1, options.indent - 1))
+
+    private val listDelimiter = if (options.jsonFormat) "" else "-" + yamlIndent(math.max(1, options.indent - 1))
+
+    // Values are hash-consed, so the same subexpression object occurs many times in large outputs. A given subexpression always has the same type.
+    private val checkedValues = new java.util.IdentityHashMap[Expression, Checked]()
+
+    var linesWritten: Long = 0L
+
+    def writeLine(prefix: String, line: String): Unit = {
+      writer.write(prefix)
+      writer.write(line)
+      writer.write('\n')
+      linesWritten += 1
+    }
+
+    private def writeLines(lines: Seq[String], firstPrefix: String, prefix: String, suffix: String): Unit = {
+      val last = lines.length - 1
+      lines.zipWithIndex.foreach { case (line, i) => writeLine(if (i == 0) firstPrefix else prefix, if (i == last) line + suffix else line) }
+    }
+
+    private def primitive: Checked = Checked(YPrimitive, isEmpty = false, Vector())
+
+    // Fields of a record, or entries of a list of type List { mapKey : Text, mapValue : _ }, with the types of their values.
+    private def fieldsOf(expr: Expression, tpe: Expression): Seq[(String, Expression, Option[Expression])] = expr.scheme match {
+      case ExpressionScheme.RecordLiteral(defs) =>
+        val fieldTypes = recordFieldTypes(tpe)
+        defs.map { case (name, e) => (name.name, e, fieldTypes.get(name)) }
+
+      case ExpressionScheme.NonEmptyList(exprs) => mapEntries(exprs, recordMapValueType(tpe))
+
+      case _ => Seq()
+    }
+
+    // Each list element is a record { mapKey = x, mapValue = y }.
+    private def mapEntries(exprs: Seq[Expression], valueType: Option[Expression]): Seq[(String, Expression, Option[Expression])] =
+      exprs.map { case Expression(RecordLiteral(defs)) =>
+        val fieldMap: Map[FieldName, Expression] = defs.toMap
+        (fieldMap(FieldName("mapKey")).scheme.asInstanceOf[TextLiteral[Expression]].trailing, fieldMap(FieldName("mapValue")), valueType)
+      }
+
+    // A list of type List { mapKey : Text, mapValue : _ } is written as a record. Duplicate keys are reported as type errors of that record.
+    private def duplicateKeyErrors(exprs: Seq[Expression]): Vector[String] = {
+      val fields = mapEntries(exprs, None)
+      if (fields.map(_._1).distinct.length == fields.length) Vector()
+      else
+        Expression(RecordLiteral(fields.map { case (name, e, _) => (FieldName(name), e) })).inferType match {
+          case TypecheckResult.Invalid(errors) => Vector(errors.toString)
+          case TypecheckResult.Valid(_)        => Vector()
         }
-        // Check if it has type { date : Date, time : Time } or { date : Date, time : Time, timeZone : TimeZone }.
-        lazy val timestampRecord: Option[RecordIsDate] = tpe.scheme match {
-          case ExpressionScheme.RecordType(defs) =>
-            val fieldMap: Map[FieldName, Expression] = defs.toMap
-            val isDateTime                           =
-              fieldMap.keySet == Set(FieldName("date"), FieldName("time")) && fieldMap(FieldName("date")) == Expression(ExprBuiltin(Builtin.Date)) && fieldMap(
-                FieldName("time")
-              ) == Expression(ExprBuiltin(Builtin.Time))
-            val isDateTimeWithZone                   = fieldMap.keySet == Set(FieldName("date"), FieldName("time"), FieldName("timeZone")) && fieldMap(
-              FieldName("date")
-            ) == Expression(ExprBuiltin(Builtin.Date)) && fieldMap(FieldName("time")) == Expression(ExprBuiltin(Builtin.Time)) && fieldMap(
-              FieldName("timeZone")
-            ) == Expression(ExprBuiltin(Builtin.TimeZone))
-            if (isDateTime) Some(RecordIsDateTime) else if (isDateTimeWithZone) Some(RecordIsDateTimeWithZone) else None
-
-          case _ => None
+    }
+
+    def check(expr: Expression, tpe: Option[Expression]): Checked = tpe match {
+      case Some(t) => check(expr, t)
+      case None    => // The type could not be derived from the parent's type.
+        expr.inferType match {
+          case TypecheckResult.Invalid(errors) => Checked(YPrimitive, isEmpty = false, Vector(errors.toString))
+          case TypecheckResult.Valid(t)        => check(expr, t)
         }
+    }
+
+    private def check(expr: Expression, tpe: Expression): Checked = {
+      val cached = checkedValues.get(expr)
+      if (cached != null) cached
+      else {
+        val result = checkUncached(expr, tpe)
+        checkedValues.put(expr, result)
+        result
+      }
+    }
+
+    private def checkFields(fields: Seq[(String, Expression, Option[Expression])]): Checked = {
+      val checked = fields.map { case (_, e, t) => check(e, t) }
+      // In JSON, records are never empty because they are written with braces.
+      Checked(YRecord, isEmpty = !options.jsonFormat && checked.forall(_.isEmpty), checked.flatMap(_.errors).toVector)
+    }
+
+    private def checkUncached(expr: Expression, tpe: Expression): Checked = expr.scheme match {
+      case ExpressionScheme.RecordLiteral(Seq()) => primitive
+
+      case ExpressionScheme.RecordLiteral(_) => if (timestampRecord(tpe).isDefined) primitive else checkFields(fieldsOf(expr, tpe))
+
+      case ExpressionScheme.EmptyList(_) => primitive
 
-        expr.scheme match {
-          // Empty record literal.
-          case ExpressionScheme.RecordLiteral(Seq()) => Right(YamlLines(YPrimitive, Seq("{}")))
-
-          // Non-empty record literal.
-          case ExpressionScheme.RecordLiteral(defs) =>
-            lazy val fieldMap = defs.toMap
-            timestampRecord match {
-              case Some(RecordIsDateTime)         =>
-                Right(YamlLines(YPrimitive, Seq("\"" + fieldMap(FieldName("date")).print + "T" + fieldMap(FieldName("time")).print + "\"")))
-              case Some(RecordIsDateTimeWithZone) =>
-                Right(
-                  YamlLines(
-                    YPrimitive,
-                    Seq("\"" + fieldMap(FieldName("date")).print + "T" + fieldMap(FieldName("time")).print + fieldMap(FieldName("timeZone")).print + "\""),
-                  )
-                )
-
-              case None => // Not a timestamp record.
-                val content: Seq[Either[String, (String, YamlLines)]] = defs.map { case (FieldName(name), e: Expression) =>
-                  toYamlLines(e, options).map(lines => (name, lines))
-                }
-
-                val errors = content.collect { case Left(e) => e }
-                if (errors.nonEmpty) Left(errors.mkString("; "))
-                else {
-                  val valids                 = content.map { case Right(x) => x }
-                  val output: Seq[YamlLines] = valids.map {
-                    case (_, YamlLines(t, Seq())) => YamlLines(t, Seq[String]()) // null values are omitted.
-
-                    case (name, YamlLines(YPrimitive, lines)) =>
-                      YamlLines(
-                        YRecord,
-                        Seq(escapeSpecialName(name, options) + ":" + yamlIndent(math.max(1, options.indent - 1)) + lines.head) ++ lines.tail.map(l =>
-                          yamlIndent(options.indent) + l
-                        ),
-                      )
-
-                    case (name, YamlLines(_, lines)) if options.jsonFormat =>
-                      YamlLines(YRecord, (escapeSpecialName(name, options) + ":" + yamlIndent(math.max(1, options.indent - 1)) + lines.head) +: lines.tail)
-
-                    case (name, YamlLines(_, lines)) =>
-                      YamlLines(YRecord, (escapeSpecialName(name, options) + ":") +: lines.map(l => yamlIndent(options.indent) + l))
-                  }
-                  if (options.jsonFormat) {
-                    if (output.isEmpty) Right(YamlLines(YRecord, Seq("{}")))
-                    else {
-                      val outputWithoutOmittedLines = output.filter(
-                        _.lines.nonEmpty
-                      ) // We should remove those lines right away, or else there will be commas inserted before removed lines, which will make an invalid final comma appear in JSON.
-                      val (jsonBeginRecord, jsonEndRecord) = (Seq("{"), Seq("}"))
-                      val init                             = outputWithoutOmittedLines.init.flatMap(y => if (y.lines.isEmpty) y.lines else y.lines.init :+ (y.lines.last + ","))
-                      val last                             = outputWithoutOmittedLines.last.lines
-                      Right(YamlLines(YRecord, jsonBeginRecord ++ (init ++ last).map(l => yamlIndent(options.indent) + l) ++ jsonEndRecord))
-                    }
-                  } else Right(YamlLines(YRecord, output.flatMap(_.lines)))
-                }
-            }
-
-          case ExpressionScheme.EmptyList(_) =>
-            val emptyListOrRecord = if (isRecordMap) "{}" else "[]"
-            Right(YamlLines(YPrimitive, Seq(emptyListOrRecord)))
-
-          case ExpressionScheme.NonEmptyList(exprs) =>
-            if (isRecordMap) { // Each expression in the list is a record { mapKey = x, mapValue = y }.
-              // Generate the same yaml as for a record {x = y, ...}
-              toYamlLines(
-                Expression(RecordLiteral(exprs.map { case Expression(RecordLiteral(defs)) =>
-                  val fieldMap: Map[FieldName, Expression] = defs.toMap
-                  (FieldName(fieldMap(FieldName("mapKey")).scheme.asInstanceOf[TextLiteral[Expression]].trailing), fieldMap(FieldName("mapValue")))
-                })),
-                options,
+      case ExpressionScheme.NonEmptyList(exprs) =>
+        recordMapValueType(tpe) match {
+          case Some(_) =>
+            val keyErrors = duplicateKeyErrors(exprs)
+            if (keyErrors.nonEmpty) Checked(YRecord, isEmpty = false, keyErrors) else checkFields(fieldsOf(expr, tpe))
+
+          case None =>
+            val elementType = builtinArgumentType(Builtin.List, tpe)
+            val checked     = exprs.map(check(_, elementType))
+            // In YAML, an empty element is omitted unless it is a null value. So, a list is empty if all its elements are empty but not null.
+            val isEmpty     = !options.jsonFormat && checked.forall(c => c.isEmpty && c.ltype != YNull)
+            Checked(YArray, isEmpty, checked.flatMap(_.errors).toVector)
+        }
+
+      case ExpressionScheme.TextLiteral(List(), _) | ExpressionScheme.NaturalLiteral(_) | ExpressionScheme.DoubleLiteral(_) |
+          ExpressionScheme.TimeLiteral(_, _, _, _) | ExpressionScheme.TimeZoneLiteral(_) | ExpressionScheme.DateLiteral(_, _, _) =>
+        primitive
+
+      case ExpressionScheme.ExprConstant(SyntaxConstants.Constant.True) | ExpressionScheme.ExprConstant(SyntaxConstants.Constant.False) => primitive
+
+      case ExpressionScheme.KeywordSome(expression: Expression) => check(expression, builtinArgumentType(Builtin.Optional, tpe))
+
+      case ExpressionScheme.Application(Expression(ExprBuiltin(Builtin.None)), _) => Checked(YNull, isEmpty = true, Vector())
+
+      case ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(_)), FieldName(_)) => primitive
+
+      case ExpressionScheme.Application(Expression(ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(defs)), name)), arg) =>
+        check(arg, defs.find(_._1.name == name.name).flatMap(_._2))
+
+      case _ => Checked(YPrimitive, isEmpty = false, Vector(s"Error: Unsupported expression type for $format export: ${expr.print} of type ${tpe.print}"))
+    }
+
+    // Write a value that was checked without errors. Empty values are not written.
+    def write(expr: Expression, tpe: Option[Expression], firstPrefix: String, prefix: String, suffix: String): Unit = {
+      val t = tpe.getOrElse(expr.inferType.unsafeGet)
+      expr.scheme match {
+        case ExpressionScheme.RecordLiteral(Seq()) => writeLine(firstPrefix, "{}" + suffix)
+
+        case ExpressionScheme.RecordLiteral(defs) =>
+          lazy val fieldMap = defs.toMap
+          timestampRecord(t) match {
+            case Some(RecordIsDateTime)         =>
+              writeLine(firstPrefix, "\"" + fieldMap(FieldName("date")).print + "T" + fieldMap(FieldName("time")).print + "\"" + suffix)
+            case Some(RecordIsDateTimeWithZone) =>
+              writeLine(
+                firstPrefix,
+                "\"" + fieldMap(FieldName("date")).print + "T" + fieldMap(FieldName("time")).print + fieldMap(FieldName("timeZone")).print + "\"" + suffix,
               )
+            case None                           => writeFields(fieldsOf(expr, t), firstPrefix, prefix, suffix)
+          }
+
+        case ExpressionScheme.EmptyList(_) => writeLine(firstPrefix, (if (recordMapValueType(t).isDefined) "{}" else "[]") + suffix)
+
+        case ExpressionScheme.NonEmptyList(exprs) =>
+          if (recordMapValueType(t).isDefined) writeFields(fieldsOf(expr, t), firstPrefix, prefix, suffix)
+          else writeList(exprs, builtinArgumentType(Builtin.List, t), firstPrefix, prefix, suffix)
+
+        case ExpressionScheme.TextLiteral(List(), trailing) =>
+          if (!options.jsonFormat && trailing.contains("\n")) writeLines("|" +: trailing.split("\n").toSeq, firstPrefix, prefix, suffix)
+          else writeLine(firstPrefix, stringEscapeForYaml(trailing, options) + suffix)
+
+        case ExpressionScheme.NaturalLiteral(_) | ExpressionScheme.DoubleLiteral(_) => writeLine(firstPrefix, expr.print + suffix)
+
+        case ExpressionScheme.TimeLiteral(_, _, _, _) | ExpressionScheme.TimeZoneLiteral(_) => writeLine(firstPrefix, "\"" + expr.print + "\"" + suffix)
+
+        case ExpressionScheme.DateLiteral(_, _, _) =>
+          val quote = if (options.jsonFormat) "\"" else "'"
+          writeLine(firstPrefix, quote + expr.print + quote + suffix)
+
+        case ExpressionScheme.ExprConstant(_) => writeLine(firstPrefix, expr.print.toLowerCase + suffix)
+
+        case ExpressionScheme.KeywordSome(expression: Expression) => write(expression, builtinArgumentType(Builtin.Optional, t), firstPrefix, prefix, suffix)
+
+        case ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(_)), FieldName(name)) =>
+          writeLine(firstPrefix, stringEscapeForYaml(name, options) + suffix)
 
-            } else {
-              val content = exprs.map(e => toYamlLines(e, options))
-              val errors  = content.collect { case Left(e) => e }
-              if (errors.nonEmpty) Left(errors.mkString("; "))
-              else {
-                val delimiter              = if (options.jsonFormat) "" else "-" + yamlIndent(math.max(1, options.indent - 1))
-                val valids                 = content.map { case Right(x) => x }
-                val output: Seq[YamlLines] = valids.map {
-                  case YamlLines(YNull, Seq()) => YamlLines(YNull, Seq(delimiter + "null")) // null empty values are represented by `null`.
-                  case YamlLines(t, Seq())     => YamlLines(t, Seq())                       // other empty values are omitted.
-                  case y @ YamlLines(_, lines) =>
-                    if (options.jsonFormat) y else y.copy(lines = (delimiter + lines.head) +: lines.tail.map(l => yamlIndent(options.indent) + l))
-                }
-
-                if (options.jsonFormat) {
-                  val (jsonBeginList, jsonEndList) = if (options.jsonFormat) (Seq("["), Seq("]")) else (Seq(), Seq())
-                  if (output.isEmpty) Right(YamlLines(YArray, Seq("[]")))
-                  else {
-                    val init = output.init.flatMap(y => if (y.lines.isEmpty) y.lines else y.lines.init :+ (y.lines.last + ","))
-                    val last = output.last.lines
-                    Right(YamlLines(YArray, jsonBeginList ++ (init ++ last).map(l => yamlIndent(options.indent) + l) ++ jsonEndList))
-                  }
-                } else Right(YamlLines(YArray, output.flatMap(_.lines)))
-              }
-            }
-
-          case ExpressionScheme.TextLiteral(List(), trailing) =>
-            if (!options.jsonFormat && trailing.contains("\n")) {
-              val lines = trailing.split("\n").toSeq
-              Right(YamlLines(YPrimitive, Seq("|") ++ lines))
-            } else Right(YamlLines(YPrimitive, Seq(stringEscapeForYaml(trailing, options))))
-
-          case ExpressionScheme.NaturalLiteral(_) | ExpressionScheme.DoubleLiteral(_) =>
-            Right(YamlLines(YPrimitive, Seq(expr.print)))
-
-          case ExpressionScheme.TimeLiteral(_, _, _, _) | ExpressionScheme.TimeZoneLiteral(_) =>
-            Right(YamlLines(YPrimitive, Seq("\"" + expr.print + "\"")))
-
-          case ExpressionScheme.DateLiteral(_, _, _) =>
-            val quote = if (options.jsonFormat) "\"" else "'"
-            Right(YamlLines(YPrimitive, Seq(quote + expr.print + quote)))
-
-          case ExpressionScheme.ExprConstant(SyntaxConstants.Constant.True) | ExpressionScheme.ExprConstant(SyntaxConstants.Constant.False) =>
-            Right(YamlLines(YPrimitive, Seq(expr.print.toLowerCase)))
-
-          case ExpressionScheme.KeywordSome(expression: Expression) => toYamlLines(expression, options)
-
-          case ExpressionScheme.Application(Expression(ExprBuiltin(Builtin.None)), _) => Right(YamlLines(YNull, Seq()))
-
-          case ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(_)), FieldName(name)) =>
-            Right(YamlLines(YPrimitive, Seq(stringEscapeForYaml(name, options))))
-
-          case ExpressionScheme.Application(Expression(ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(_)), FieldName(_))), expr) =>
-            toYamlLines(expr, options)
-
-          case _ => Left(s"Error: Unsupported expression type for $format export: ${expr.print} of type ${tpe.print}")
+        case ExpressionScheme.Application(Expression(ExpressionScheme.Field(Expression(ExpressionScheme.UnionType(defs)), name)), arg) =>
+          write(arg, defs.find(_._1.name == name.name).flatMap(_._2), firstPrefix, prefix, suffix)
+
+        case _ => // `None T` produces no lines. Other values were rejected by `check`.
+      }
+    }
+
+    private def writeFields(fields: Seq[(String, Expression, Option[Expression])], firstPrefix: String, prefix: String, suffix: String): Unit = {
+      val nonEmpty = fields.map { case (name, e, t) => (name, e, t, check(e, t)) }.filterNot(_._4.isEmpty) // Null values are omitted.
+      val last     = nonEmpty.length - 1
+      if (options.jsonFormat) {
+        writeLine(firstPrefix, "{")
+        nonEmpty.zipWithIndex.foreach { case ((name, e, t, checked), i) =>
+          val fieldPrefix = prefix + indent
+          val start       = fieldPrefix + escapeSpecialName(name, options) + afterName
+          val separator   = if (i == last) "" else ","
+          if (checked.ltype == YPrimitive) write(e, t, start, fieldPrefix + indent, separator) else write(e, t, start, fieldPrefix, separator)
+        }
+        writeLine(prefix, "}" + suffix)
+      } else
+        nonEmpty.zipWithIndex.foreach { case ((name, e, t, checked), i) =>
+          val start       = if (i == 0) firstPrefix else prefix
+          val lastSuffix  = if (i == last) suffix else ""
+          val escapedName = escapeSpecialName(name, options)
+          if (checked.ltype == YPrimitive) write(e, t, start + escapedName + afterName, prefix + indent, lastSuffix)
+          else {
+            writeLine(start, escapedName + ":")
+            write(e, t, prefix + indent, prefix + indent, lastSuffix)
+          }
+        }
+    }
+
+    private def writeList(exprs: Seq[Expression], elementType: Option[Expression], firstPrefix: String, prefix: String, suffix: String): Unit = {
+      // Empty elements are omitted, except for null values.
+      val written = exprs.map(e => (e, check(e, elementType))).filter { case (_, checked) => !checked.isEmpty || checked.ltype == YNull }
+      val last    = written.length - 1
+      if (options.jsonFormat) {
+        writeLine(firstPrefix, "[")
+        written.zipWithIndex.foreach { case ((e, checked), i) =>
+          val separator = if (i == last) "" else ","
+          if (checked.ltype == YNull) writeLine(prefix + indent, "null" + separator) else write(e, elementType, prefix + indent, prefix + indent, separator)
+        }
+        writeLine(prefix, "]" + suffix)
+      } else
+        written.zipWithIndex.foreach { case ((e, checked), i) =>
+          val start      = (if (i == 0) firstPrefix else prefix) + listDelimiter
+          val lastSuffix = if (i == last) suffix else ""
+          if (checked.ltype == YNull) writeLine(start, "null" + lastSuffix) else write(e, elementType, start, prefix + indent, lastSuffix)
         }
     }
   }
@@ -302,22 +403,53 @@ object Yaml {
     toYaml(DhallFile(Seq(), "", expression), options)
   }
 
-  def toYaml(dhallFile: DhallFile, rawOptions: YamlOptions): Either[String, String] = {
-    val options   = if (!rawOptions.jsonFormat) rawOptions.copy(indent = math.max(rawOptions.indent, 1)) else rawOptions
-    val yamlLines = (options.createDocuments && !options.jsonFormat, dhallFile.value.scheme) match {
+  def toYaml(dhallFile: DhallFile, options: YamlOptions): Either[String, String] = {
+    val writer = new StringWriter
+    writeYaml(dhallFile, options, writer).map(_ => writer.toString)
+  }
+
+  /** Convert a Dhall value to Yaml (or JSON) and write it to `writer`. Nothing is written if the value cannot be converted.
+    *
+    * @return
+    *   Error messages if the value cannot be converted.
+    */
+  def writeYaml(dhallFile: DhallFile, rawOptions: YamlOptions, writer: Writer): Either[String, Unit] = {
+    val options = if (!rawOptions.jsonFormat) rawOptions.copy(indent = math.max(rawOptions.indent, 1)) else rawOptions
+    val emitter = new Emitter(options, writer)
+
+    def inferred(expr: Expression): Either[String, Expression] = expr.inferType match {
+      case TypecheckResult.Invalid(errors) => Left(errors.toString)
+      case TypecheckResult.Valid(tpe)      => Right(tpe)
+    }
+
+    // Each document is a value with its type. Each document is preceded by "---" if documents are created.
+    val documents: Either[String, Seq[(Expression, Expression)]] = (options.createDocuments && !options.jsonFormat, dhallFile.value.scheme) match {
       case (true, ExpressionScheme.NonEmptyList(exprs)) =>
-        val results = exprs.map { e => toYamlLines(e, options.copy(createDocuments = false)) }
+        val results = exprs.map(e => inferred(e).map(t => (e, t)))
         val errors  = results.collect { case Left(x) => x }
-        if (errors.isEmpty) {
-          val valids = results.collect { case Right(x) => x }
-          Right(YamlLines(YArray, valids.flatMap { v => "---" +: v.lines }))
-        } else Left(errors.mkString("; "))
-
-      case _ =>
-        val documentPrefix: Seq[String] = if (options.createDocuments) Seq("---") else Seq()
-        toYamlLines(dhallFile.value, options.copy(createDocuments = false)).map(y => y.copy(lines = documentPrefix ++ y.lines))
+        if (errors.isEmpty) Right(results.collect { case Right(x) => x }) else Left(errors.mkString("; "))
+
+      case _ => inferred(dhallFile.value).map(t => Seq((dhallFile.value, t)))
+    }
+
+    documents.flatMap { docs =>
+      val errors = docs.flatMap { case (expr, tpe) => emitter.check(expr, Some(tpe)).errors }
+      if (errors.nonEmpty) Left(errors.mkString("; "))
+      else {
+        writer.write(commentsToYaml(dhallFile.headerComments, options))
+        docs.foreach { case (expr, tpe) =>
+          if (options.createDocuments) emitter.writeLine("", "---")
+          emitter.write(expr, Some(tpe), "", "", "")
+        }
+        if (emitter.linesWritten == 0) writer.write("\n")
+        writer.flush()
+        Right(())
+      }
     }
-    yamlLines.map(_.lines.mkString("", "\n", "\n")).map(yaml => commentsToYaml(dhallFile.headerComments, options) + yaml)
   }
 
+  // Write Yaml (or JSON) to `output` in UTF-8. The stream is flushed but not closed.
+  def writeYaml(dhallFile: DhallFile, options: YamlOptions, output: OutputStream): Either[String, Unit] =
+    writeYaml(dhallFile, options, new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)))
+
 }
@@ -0,0 +1,200 @@
+package io.chymyst.dhall.unit
+
+import com.eed3si9n.expecty.Expecty.expect
+import io.chymyst.dhall.Parser.StringAsDhallExpression
+import io.chymyst.dhall.Syntax.Expression
+import io.chymyst.dhall.{AllCaches, CBORmodel, CacheMetrics, CancellationToken, EvaluationContext, EvaluationSession, ObservedCache, SemanticHashStore, Semantics, WeightedCache}
+
+import java.lang.management.ManagementFactory
+import java.nio.file.{Files, StandardOpenOption}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicReference}
+import java.util.concurrent.{Callable, CancellationException, CountDownLatch, Executors, TimeUnit}
+import javax.management.ObjectName
+import scala.jdk.CollectionConverters.SetHasAsScala
+import scala.util.Try
+
+class CacheTest extends DhallTest {
+
+  test("concurrent requests for the same key compute the value only once") {
+    val cache        = new ObservedCache[Int, String]("test cache", Some(100))
+    val computations = new AtomicInteger(0)
+    val threads      = 8
+    val start        = new CountDownLatch(1)
+    val executor     = Executors.newFixedThreadPool(threads)
+    val results      = (1 to threads).map { _ =>
+      executor.submit(new Callable[String] {
+        override def call(): String = {
+          start.await()
+          cache.getOrElseUpdate(1, { computations.incrementAndGet(); Thread.sleep(200); "one" })
+        }
+      })
+    }
+    start.countDown()
+    val values       = results.map(_.get(10, TimeUnit.SECONDS))
+    executor.shutdown()
+    expect(values.forall(_ == "one"), computations.get == 1, cache.get(1) == Some("one"))
+  }
+
+  test("reentrant requests for the same key do not deadlock") {
+    val cache = new ObservedCache[Int, Int]("test cache", None)
+    expect(cache.getOrElseUpdate(1, cache.getOrElseUpdate(1, 123)) == 123)
+  }
+
+  test("two threads requesting each other's in-flight keys do not deadlock") {
+    val cache                   = new ObservedCache[Int, String]("test cache", None)
+    val bothStarted             = new CountDownLatch(2)
+    val executor                = Executors.newFixedThreadPool(2)
+    // Computing key 1 requests key 2 and vice versa, but only the first time, so that computing a key again after detecting a cycle terminates.
+    val firstTime               = Map(1 -> new AtomicBoolean(true), 2 -> new AtomicBoolean(true))
+    def value(key: Int): String = {
+      if (firstTime(key).getAndSet(false)) {
+        bothStarted.countDown()
+        bothStarted.await()
+        cache.getOrElseUpdate(3 - key, value(3 - key))
+      }
+      key.toString
+    }
+    val results                 = Seq(1, 2).map { key =>
+      executor.submit(new Callable[String] {
+        override def call(): String = cache.getOrElseUpdate(key, value(key))
+      })
+    }
+    val values                  = results.map(_.get(10, TimeUnit.SECONDS))
+    executor.shutdown()
+    expect(values == Seq("1", "2"), cache.get(1) == Some("1"), cache.get(2) == Some("2"))
+  }
+
+  test("failed computations are not cached") {
+    val cache = new ObservedCache[Int, Int]("test cache", None)
+    intercept[IllegalStateException](cache.getOrElseUpdate(1, throw new IllegalStateException("failed")))
+    expect(cache.get(1).isEmpty, cache.getOrElseUpdate(1, 123) == 123)
+  }
+
+  test("a request waiting for a value that a cancelled session was computing computes the value itself") {
+    val cache        = new ObservedCache[Int, String]("test cache", None)
+    val first        = EvaluationSession.isolated()
+    val second       = new EvaluationSession(first.caches)
+    val started      = new CountDownLatch(1)
+    val owner        = first.runAsync() {
+      cache.getOrElseUpdate(
+        1, {
+          started.countDown()
+          while (true) {
+            CancellationToken.checkCurrent()
+            Thread.sleep(10)
+          }
+          "never"
+        },
+      )
+    }
+    started.await()
+    val waiterThread = new AtomicReference[Thread]
+    val waiter       = second.runAsync() {
+      waiterThread.set(Thread.currentThread)
+      cache.getOrElseUpdate(1, "one")
+    }
+    while (waiterThread.get == null || waiterThread.get.getState != Thread.State.WAITING) Thread.sleep(10)
+    owner.cancel(true)
+    expect(waiter.get(10, TimeUnit.SECONDS) == "one", Try(owner.join()).failed.get.isInstanceOf[CancellationException])
+  }
+
+  test("weighted cache prefers recent entries when all entries are equally frequent") {
+    val cache         = new WeightedCache[Int, String](maxEntries = 200, maxWeight = 10000, weigh = (_, _) => 1L)
+    (1 to 1000).foreach { i => cache.put(i, "x") }
+    // The frequency sketch estimates counts approximately, so an occasional older entry may win a tie. Most of the kept entries must still be recent.
+    val (recent, old) = (1 to 1000).filter(i => cache.peek(i).nonEmpty).partition(_ > 500)
+    expect(cache.size == 200, cache.peek(1000).nonEmpty, (1 to 100).forall(i => cache.peek(i).isEmpty), recent.size > old.size)
+  }
+
+  test("observed cache weighs each computed entry once") {
+    val weighings = new AtomicInteger(0)
+    val cache     = new ObservedCache[Int, String](
+      "test cache",
+      None,
+      maybeWeight = Some(ObservedCache.Weight[Int, String](1000, (_, value) => { weighings.incrementAndGet(); value.length.toLong })),
+    )
+    expect(cache.getOrElseUpdate(1, "one") == "one", cache.get(1) == Some("one"), weighings.get == 1, cache.metrics.computedWeight == 3)
+  }
+
+  test("weighted cache does not let a heavy entry used once evict light entries used often") {
+    val cache = new WeightedCache[Int, String](maxEntries = 1000, maxWeight = 1000, weigh = (_, value) => value.length.toLong)
+    (1 to 50).foreach { i => cache.put(i, "x" * 10) }
+    (1 to 5).foreach { _ => (1 to 50).foreach(i => cache.get(i)) }
+    expect(cache.totalWeight == 500)
+    cache.get(1000)
+    cache.put(1000, "y" * 900)
+    expect((1 to 50).forall(i => cache.get(i).nonEmpty), cache.get(1000).isEmpty, cache.totalWeight <= 1000, cache.evictions == 1)
+    cache.put(2000, "z" * 2000)
+    expect(cache.get(2000).isEmpty, cache.evictions == 2)
+  }
+
+  test("evaluation sessions use their own caches") {
+    val session = EvaluationSession.isolated()
+    expect(session.caches.beta.size == 0, session.caches.gamma.size == 0)
+    val result  = session.evaluate("let f = λ(x : Natural) → x + 1 in f 2")
+    expect(result.unsafeGet.print == "3", session.caches.beta.size > 0, session.caches.gamma.size > 0)
+    expect(EvaluationSession.isolated().caches.beta.size == 0)
+  }
+
+  test("threads created during a session do not keep the session's caches") {
+    val session               = EvaluationSession.isolated()
+    val executor              = Executors.newSingleThreadExecutor()
+    val currentCaches         = new Callable[AllCaches] {
+      override def call(): AllCaches = AllCaches.current
+    }
+    // The pool creates its thread while the session is current in the submitting thread.
+    val (seenInside, context) = session.run {
+      expect(AllCaches.current eq session.caches)
+      (executor.submit(currentCaches).get, EvaluationContext.capture())
+    }
+    val seenLater             = executor.submit(currentCaches).get
+    // A task that needs the session must get it explicitly.
+    val seenWithContext       = executor
+      .submit(new Callable[AllCaches] {
+        override def call(): AllCaches = context.run(AllCaches.current)
+      }).get
+    executor.shutdown()
+    expect(seenInside eq AllCaches.shared, seenLater eq AllCaches.shared, seenWithContext eq session.caches)
+  }
+
+  test("cache metrics are available programmatically and via JMX") {
+    val cache   =
+      new ObservedCache[Int, String]("metrics test cache", Some(2), maybeWeight = Some(ObservedCache.Weight[Int, String](1000, (_, v) => v.length.toLong)))
+    (1 to 5).foreach(i => cache.getOrElseUpdate(i % 4, "x" * i))
+    val metrics = cache.metrics
+    expect(metrics.requests == 5, metrics.hits == 1, metrics.misses == 4, metrics.meanComputedEntryWeight == 2.5, metrics.inFlight == 0)
+
+    val registration = CacheMetrics.registerMBean(cache)
+    val server       = ManagementFactory.getPlatformMBeanServer
+    val names        = server.queryNames(new ObjectName("io.chymyst.dhall:type=Cache,*"), null).asScala
+    val ourName      = names.find(name => server.getAttribute(name, "Name") == "metrics test cache")
+    expect(ourName.nonEmpty, ourName.map(server.getAttribute(_, "Requests")) == Some(5L))
+    registration.close()
+    expect(!ourName.exists(server.isRegistered))
+  }
+
+  test("semantic hash store imports cache files, appends records, and recovers from a truncated record") {
+    val root    = Files.createTempDirectory("dhall-cache-store")
+    val encoded = Seq("1", "{ a = True }", "[ 1, 2, 3 ]", "\"text\"").map { source =>
+      val bytes = source.dhall.toCBORmodel.encodeCbor2
+      (Semantics.computeHash(bytes), bytes)
+    }
+    Files.write(root.resolve("1220" + encoded(0)._1), encoded(0)._2)
+    Files.write(root.resolve("1220" + "00" * 32), encoded(1)._2) // This file has a wrong hash.
+    expect(SemanticHashStore.existing(root).isEmpty)
+    expect(SemanticHashStore.compact(root) == SemanticHashStore.CompactionResult(records = 1, importedFiles = 1, droppedRecords = 1))
+
+    val store                            = SemanticHashStore.existing(root).get
+    def decode(hash: String): Expression = Expression(CBORmodel.decodeCbor1(SemanticHashStore.inputStream(store.get(hash).get)).toScheme)
+    expect(decode(encoded(0)._1) == "1".dhall, store.get(encoded(1)._1).isEmpty)
+    store.put(encoded(2)._1, encoded(2)._2)
+    expect(decode(encoded(2)._1) == "[ 1, 2, 3 ]".dhall, store.size == 2)
+    // Simulate a crash while appending a record.
+    Files.write(store.file, Array[Byte](0x44, 0x43, 0x48, 0x52, 1, 2, 3), StandardOpenOption.APPEND)
+    store.put(encoded(3)._1, encoded(3)._2)
+    expect(decode(encoded(3)._1) == "\"text\"".dhall, store.size == 3)
+    expect(SemanticHashStore.compact(root) == SemanticHashStore.CompactionResult(records = 3, importedFiles = 0, droppedRecords = 1))
+    expect(store.size == 3, decode(encoded(0)._1) == "1".dhall)
+  }
+
+}
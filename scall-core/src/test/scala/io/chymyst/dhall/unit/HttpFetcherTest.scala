@@ -0,0 +1,141 @@
+package io.chymyst.dhall.unit
+
+import com.eed3si9n.expecty.Expecty.expect
+import com.sun.net.httpserver.{HttpExchange, HttpServer}
+import io.chymyst.dhall.{EvaluationSession, HttpFetcher}
+import io.chymyst.dhall.Parser.StringAsDhallExpression
+
+import java.net.InetSocketAddress
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CancellationException, CountDownLatch, ExecutionException, TimeUnit, TimeoutException}
+import scala.concurrent.duration.DurationInt
+import scala.util.{Try, Using}
+
+class HttpFetcherTest extends DhallTest {
+
+  // Run a local HTTP server with the given handler and pass its base URL to `test`.
+  private def withServer[R](handler: HttpExchange => Unit)(test: String => R): R = {
+    val server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+    server.createContext("/", (exchange: HttpExchange) => handler(exchange))
+    server.start()
+    try test(s"http://127.0.0.1:${server.getAddress.getPort}")
+    finally server.stop(0)
+  }
+
+  private def respond(exchange: HttpExchange, status: Int, body: String, headers: (String, String)*): Unit = {
+    headers.foreach { case (name, value) => exchange.getResponseHeaders.add(name, value) }
+    val bytes = body.getBytes("UTF-8")
+    if (status == 304) exchange.sendResponseHeaders(304, -1)
+    else {
+      exchange.sendResponseHeaders(status, bytes.length.toLong)
+      exchange.getResponseBody.write(bytes)
+    }
+    exchange.close()
+  }
+
+  test("stale cached responses are revalidated with conditional requests") {
+    val requestCount = new AtomicInteger(0)
+    withServer { exchange =>
+      requestCount.incrementAndGet()
+      if (exchange.getRequestHeaders.getFirst("If-None-Match") == "\"v1\"") respond(exchange, 304, "")
+      else respond(exchange, 200, "1", "ETag" -> "\"v1\"", "Cache-Control" -> "no-cache")
+    } { base =>
+      val fetcher = new HttpFetcher(Some(Files.createTempDirectory("dhall-http-cache")))
+      val first   = fetcher.get(s"$base/a.dhall", Nil)
+      val second  = fetcher.get(s"$base/a.dhall", Nil)
+      expect(!first.fromCache, second.fromCache, new String(second.bytes, "UTF-8") == "1", requestCount.get == 2)
+    }
+  }
+
+  test("fresh cached responses are used without requests, and offline mode uses only cached responses") {
+    val requestCount = new AtomicInteger(0)
+    var now          = 1000000L
+    withServer { exchange =>
+      requestCount.incrementAndGet()
+      if (exchange.getRequestURI.getPath == "/secret.dhall") respond(exchange, 200, "2", "Cache-Control" -> "no-store")
+      else respond(exchange, 200, "1", "Cache-Control"                                                   -> "public, max-age=60")
+    } { base =>
+      val directory = Files.createTempDirectory("dhall-http-cache")
+      val fetcher   = new HttpFetcher(Some(directory), currentTimeMillis = () => now)
+      fetcher.get(s"$base/a.dhall", Nil)
+      expect(fetcher.get(s"$base/a.dhall", Nil).fromCache, requestCount.get == 1)
+      now += 61000L
+      expect(!fetcher.get(s"$base/a.dhall", Nil).fromCache, requestCount.get == 2)
+      fetcher.get(s"$base/secret.dhall", Nil)
+
+      val offline = new HttpFetcher(Some(directory), offline = true)
+      expect(new String(offline.get(s"$base/a.dhall", Nil).bytes, "UTF-8") == "1")
+      expect(Try(offline.get(s"$base/secret.dhall", Nil)).failed.get.getMessage contains "Offline mode")
+      expect(requestCount.get == 3)
+    }
+  }
+
+  test("responses to authorized requests and private responses are not written to the disk cache") {
+    val requestCount = new AtomicInteger(0)
+    withServer { exchange =>
+      requestCount.incrementAndGet()
+      if (exchange.getRequestURI.getPath == "/private.dhall") respond(exchange, 200, "1", "Cache-Control" -> "private, max-age=60")
+      else respond(exchange, 200, "2", "Cache-Control"                                                    -> "public, max-age=60")
+    } { base =>
+      val directory     = Files.createTempDirectory("dhall-http-cache")
+      val fetcher       = new HttpFetcher(Some(directory))
+      val authorization = Seq("Authorization" -> "token secret")
+      fetcher.get(s"$base/private.dhall", Nil)
+      fetcher.get(s"$base/public.dhall", authorization)
+      expect(Using.resource(Files.list(directory))(_.count) == 0L)
+      expect(!fetcher.get(s"$base/private.dhall", Nil).fromCache, !fetcher.get(s"$base/public.dhall", authorization).fromCache, requestCount.get == 4)
+    }
+  }
+
+  test("remote imports are fetched with the current fetcher and checked for CORS compliance") {
+    withServer(exchange => respond(exchange, 200, "{ x = 1 }")) { other =>
+      withServer { exchange =>
+        exchange.getRequestURI.getPath match {
+          case "/value.dhall" => respond(exchange, 200, "{ x = 1 }")
+          case "/same.dhall"  => respond(exchange, 200, "./value.dhall")
+          case _              => respond(exchange, 200, s"$other/value.dhall") // The other server does not send a CORS header.
+        }
+      } { base =>
+        HttpFetcher.withFetcher(new HttpFetcher(None)) {
+          expect(s"$base/same.dhall".dhall.resolveImports() == "{ x = 1 }".dhall)
+          expect(Try(s"$base/cross-origin.dhall".dhall.resolveImports()).failed.get.getMessage contains "CORS")
+        }
+      }
+    }
+  }
+
+  test("asynchronous evaluation completes, fails at its deadline, and can be cancelled while a remote import is loading") {
+    val release = new CountDownLatch(1)
+    withServer { exchange =>
+      if (exchange.getRequestURI.getPath == "/slow.dhall") release.await(10, TimeUnit.SECONDS)
+      respond(exchange, 200, "{ x = 1 }")
+    } { base =>
+      val session = EvaluationSession.isolated()
+      expect(session.evaluateAsync(s"($base/fast.dhall).x + 1").get(10, TimeUnit.SECONDS) == "2".dhall)
+
+      val late  = session.evaluateAsync(s"($base/slow.dhall).x", timeout = Some(200.millis))
+      val error = Try(late.get(10, TimeUnit.SECONDS)).failed.get
+      expect(error.isInstanceOf[ExecutionException], error.getCause.isInstanceOf[TimeoutException])
+
+      val cancelled = session.evaluateAsync(s"($base/slow.dhall).x")
+      expect(cancelled.cancel(true), cancelled.isCancelled)
+      expect(Try(cancelled.get()).failed.get.isInstanceOf[CancellationException])
+      release.countDown()
+    }
+  }
+
+  test("asynchronous evaluation uses the HTTP fetcher of the calling thread") {
+    val requestCount = new AtomicInteger(0)
+    withServer { exchange =>
+      requestCount.incrementAndGet()
+      respond(exchange, 200, "1")
+    } { base =>
+      val offline = new HttpFetcher(Some(Files.createTempDirectory("dhall-http-cache")), offline = true)
+      val future  = HttpFetcher.withFetcher(offline)(EvaluationSession.isolated().evaluateAsync(s"$base/a.dhall"))
+      val error   = Try(future.get(10, TimeUnit.SECONDS)).failed.get
+      expect(error.isInstanceOf[ExecutionException], error.getCause.getMessage contains "Offline mode", requestCount.get == 0)
+    }
+  }
+
+}
@@ -2,8 +2,9 @@ package io.chymyst.dhall.unit
 
 import com.eed3si9n.expecty.Expecty.expect
 import fastparse.internal.{Instrument, Msgs}
-import io.chymyst.dhall.Grammar
+import io.chymyst.dhall.{Grammar, Parser}
 
+import java.lang.management.ManagementFactory
 import scala.collection.mutable
 
 class ParserStressTest extends DhallTest {
@@ -225,4 +226,24 @@ class ParserStressTest extends DhallTest {
     }
   }
 
+  test("allocation when parsing a large Dhall file grows linearly with the input size") {
+    // Measure the bytes allocated by the current thread. This requires the HotSpot extension of ThreadMXBean.
+    val threadBean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+    val threadId   = Thread.currentThread.getId
+
+    def input(n: Int): String = (1 to n).map(i => s"""{ name = "item $i", value = $i, flag = True, tags = [ "a", "b" ] }""").mkString("[ ", ", ", " ]")
+
+    // Allocated bytes per byte of input.
+    def allocationRate(source: String): Double = {
+      val initAllocated = threadBean.getThreadAllocatedBytes(threadId)
+      expect(Parser.parseDhall(source).isSuccess)
+      (threadBean.getThreadAllocatedBytes(threadId) - initAllocated).toDouble / source.getBytes("UTF-8").length
+    }
+
+    val small = input(1000)
+    val large = input(4000)
+    (1 to 3).foreach(_ => allocationRate(small)) // Warm up JVM.
+    // The memo tables allocate nothing per lookup, so parsing a 4 times larger input must not allocate much more per byte.
+    expect(allocationRate(large) < 1.5 * allocationRate(small))
+  }
 }
@@ -515,4 +515,24 @@ class SimpleExpressionTest extends DhallTest {
       ),
     )
   }
+
+  test("structurally equal expressions are interned to the same object") {
+    val x                      = Parser.parseToExpression("λ(x : Natural) → { a = x + 1, b = [ x, x ] }")
+    val y                      = Parser.parseToExpression("λ(x : Natural) → { a = x + 1, b = [ x, x ] }")
+    expect(x eq y)
+    expect(x.copy() eq x)
+    val Lambda(_, natural1, _) = x.scheme
+    expect(natural1 eq Expression(ExprBuiltin(Natural)))
+  }
+
+  test("interning can be switched off") {
+    val x      = Parser.parseToExpression("λ(x : Natural) → { a = x + 1, b = [ x, x ] }")
+    val (y, z) =
+      try {
+        Expression.enableInterning = false
+        (Parser.parseToExpression("λ(x : Natural) → { a = x + 1, b = [ x, x ] }"), Expression(x.scheme))
+      } finally Expression.enableInterning = true
+    expect(y == x && !(y eq x), z == x && !(z eq x))
+    expect(y.uniqueSubexpressionReferences eq x, Expression(z.scheme) eq x)
+  }
 }
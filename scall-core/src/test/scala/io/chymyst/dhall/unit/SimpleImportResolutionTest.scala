@@ -5,10 +5,11 @@ import io.chymyst.dhall.Parser.StringAsDhallExpression
 import io.chymyst.dhall.Syntax.Expression
 import io.chymyst.dhall.Syntax.ExpressionScheme._
 import io.chymyst.dhall.SyntaxConstants.{FilePrefix, ImportType}
-import io.chymyst.dhall.{Semantics, SyntaxConstants}
+import io.chymyst.dhall.{FrozenImportCache, ResolvedImportCache, Semantics, SyntaxConstants}
 import io.chymyst.test.ResourceFiles.{enumerateResourceFiles, resourceAsFile}
 
-import java.nio.file.Paths
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Paths}
 import scala.util.Try
 
 class SimpleImportResolutionTest extends DhallTest {
@@ -98,4 +99,86 @@ class SimpleImportResolutionTest extends DhallTest {
     expect(Semantics.semanticHash(expr2.resolveImports(), Paths.get(".")) == "de93ce8633ee0cbc9c4d4351cafcd82965c5a7c221d28ad194900ead38887617")
   }
 
+  test("sibling imports are resolved concurrently with the same result as sequential resolution") {
+    val dir      = Files.createTempDirectory("dhall-parallel-imports")
+    Seq("a.dhall" -> "1", "c.dhall" -> "[ ./a.dhall, 2 ]", "d.dhall" -> "{ x = ./a.dhall, y = ./c.dhall }").foreach { case (name, content) =>
+      Files.write(dir.resolve(name), content.getBytes("UTF-8"))
+    }
+    val parent   = dir.resolve("main.dhall")
+    val expected = "{ p = 1, q = [ 1, 2 ], r = { x = 1, y = [ 1, 2 ] }, s = 1 + 1 }".dhall
+    (1 to 20).foreach { _ =>
+      val resolved = "{ p = ./a.dhall, q = ./c.dhall, r = ./d.dhall, s = ./a.dhall + ./a.dhall }".dhall.resolveImports(parent)
+      expect(resolved == expected)
+    }
+    // Only the first failure is reported, as with sequential resolution. The message also shows the entire expression that failed to resolve.
+    val error    = Try("{ p = ./missing1.dhall, q = ./a.dhall, r = ./missing2.dhall }".dhall.resolveImports(parent)).failed.get.getMessage
+    expect(error contains "missing1.dhall does not exist", !(error contains "missing2.dhall does not exist"))
+  }
+
+  test("a failing import after a slow import shared by its siblings is reported rather than the cancellation of a sibling") {
+    val dir    = Files.createTempDirectory("dhall-parallel-imports-failure")
+    val parent = dir.resolve("main.dhall")
+    (1 to 10).foreach { i =>
+      // Each file has a different value, so that it is normalized again rather than taken from the cache.
+      Files.write(dir.resolve(s"slow$i.dhall"), s"Natural/fold 1000 Natural (λ(n : Natural) → n + 1) $i".getBytes("UTF-8"))
+      val error = Try(s"{ p = ./slow$i.dhall + 1, q = ./missing.dhall, r = ./slow$i.dhall + 2 }".dhall.resolveImports(parent)).failed.get.getMessage
+      expect(error contains "missing.dhall does not exist", !(error contains "Import resolution stopped"))
+    }
+  }
+
+  test("resolved local imports are cached across invocations until the files change") {
+    val dir                 = Files.createTempDirectory("dhall-import-cache")
+    val fileA               = dir.resolve("a.dhall")
+    val fileB               = dir.resolve("b.dhall")
+    Files.write(fileA, "1".getBytes("UTF-8"))
+    Files.write(fileB, "./a.dhall + 1".getBytes("UTF-8"))
+    val parent              = dir.resolve("main.dhall")
+    val cache               = ResolvedImportCache.shared
+    def resolve: Expression = "./b.dhall".dhall.resolveImports(parent)
+
+    expect(resolve == "2".dhall)
+    val hits = cache.hits
+    expect(resolve == "2".dhall, cache.hits > hits)
+    // Changing the modification time without changing the contents does not invalidate the cache.
+    Files.setLastModifiedTime(fileA, FileTime.fromMillis(Files.getLastModifiedTime(fileA).toMillis + 10000))
+    expect(resolve == "2".dhall)
+    // Changing a transitive import invalidates the cached value.
+    Files.write(fileA, "10".getBytes("UTF-8"))
+    expect(resolve == "11".dhall)
+    cache.invalidatePath(fileA)
+    expect(resolve == "11".dhall)
+    // With caching disabled, the files are read again.
+    Files.write(fileB, "./a.dhall + 2".getBytes("UTF-8"))
+    expect("./b.dhall".dhall.resolveImports(parent, enableCache = false) == "12".dhall)
+  }
+
+  test("a file changed again within the resolution of modification times is read again") {
+    val dir      = Files.createTempDirectory("dhall-import-cache-racy")
+    val file     = dir.resolve("a.dhall")
+    Files.write(file, "1".getBytes("UTF-8"))
+    val modified = Files.getLastModifiedTime(file)
+    val parent   = dir.resolve("main.dhall")
+    expect("./a.dhall".dhall.resolveImports(parent) == "1".dhall)
+    // Same size and same modification time, but different contents.
+    Files.write(file, "2".getBytes("UTF-8"))
+    Files.setLastModifiedTime(file, modified)
+    expect("./a.dhall".dhall.resolveImports(parent) == "2".dhall)
+  }
+
+  test("frozen imports are served from memory with their type after the first resolution") {
+    val dir    = Files.createTempDirectory("dhall-frozen-imports")
+    val file   = dir.resolve("package.dhall")
+    Files.write(file, "{ x = 1, f = λ(n : Natural) → n + 1 }".getBytes("UTF-8"))
+    val hash   = Semantics.semanticHash("./package.dhall".dhall, dir.resolve("main.dhall"))
+    val frozen = s"./package.dhall sha256:$hash".dhall
+    val first  = frozen.resolveImports(dir.resolve("main.dhall"))
+    val hits   = FrozenImportCache.shared.hits
+    // The digest fixes the value, so the changed file is not read again.
+    Files.write(file, "{ x = 2, f = λ(n : Natural) → n + 2 }".getBytes("UTF-8"))
+    val second = frozen.resolveImports(dir.resolve("main.dhall"))
+    // The cache holds the normal form, which is also alpha-normalized.
+    expect(second == first.alphaNormalized, FrozenImportCache.shared.hits > hits, FrozenImportCache.shared.isVerified(hash, second))
+    expect(second.inferType.unsafeGet.alphaNormalized == "{ f : Natural → Natural, x : Natural }".dhall.alphaNormalized)
+  }
+
 }
@@ -5,11 +5,11 @@ import io.chymyst.dhall.Parser.StringAsDhallExpression
 import io.chymyst.dhall.Semantics.BetaNormalizingOptions
 import io.chymyst.dhall.Syntax.Expression
 import io.chymyst.dhall.Syntax.Expression._
-import io.chymyst.dhall.Syntax.ExpressionScheme.{ExprOperator, Variable, underscore}
+import io.chymyst.dhall.Syntax.ExpressionScheme.{ExprOperator, NaturalLiteral, NonEmptyList, TextLiteral, Variable, underscore}
 import io.chymyst.dhall.SyntaxConstants.Builtin.Natural
 import io.chymyst.dhall.SyntaxConstants.{Operator, VarName}
 import io.chymyst.dhall.TypeCheck.KnownVars
-import io.chymyst.dhall.{Parser, Semantics, TypecheckResult}
+import io.chymyst.dhall.{EvaluationSession, NormalizationByEvaluation, Parser, Semantics, TypecheckResult}
 
 import scala.util.Try
 
@@ -534,4 +534,85 @@ class SimpleSemanticsTest extends DhallTest {
     expect(Try(result.unsafeGet).failed.get.getMessage contains "Inferred type { x : { y : Text } } differs from the expected type { x : { y : Natural } }")
   }
 
+  test("typing context shifts types lazily on lookup and compares by value") {
+    val x      = VarName("x")
+    val gamma1 = KnownVars.empty.prependAndShift(x, "x".dhall).prependAndShift(VarName("y"), "x → y".dhall).prependAndShift(x, "List x".dhall)
+    val gamma2 = KnownVars.empty.prependAndShift(x, "x".dhall).prependAndShift(VarName("y"), "x → y".dhall).prependAndShift(x, "List x".dhall)
+    expect(gamma1.lookup(Variable(x, 0)).map(_.print) == Some("List x@1"))
+    expect(gamma1.lookup(Variable(x, 1)).map(_.print) == Some("x@2"))
+    expect(gamma1.lookup(Variable(VarName("y"), 0)).map(_.print) == Some("∀(_ : x@1) → y@1"))
+    expect(gamma1.lookup(Variable(x, 2)).isEmpty)
+    expect(gamma1 == gamma2, gamma1.hashCode == gamma2.hashCode, gamma1 != KnownVars.empty)
+  }
+
+  test("typing context shifts each type in one pass and remembers shifted types") {
+    val x       = VarName("x")
+    val n       = 2000
+    val gamma   = (1 to n).foldLeft(KnownVars.empty.prependAndShift(x, "x → x@1".dhall))((g, _) => g.prependAndShift(x, "Bool".dhall))
+    val tipe    = gamma.lookup(Variable(x, n))
+    expect(tipe.map(_.print) == Some(s"∀(_ : x@${n + 1}) → x@${n + 2}"))
+    expect(gamma.lookup(Variable(x, n)).get eq tipe.get)
+    expect(Semantics.shift(true, x, 0, "x → x@1".dhall, amount = 3) == (1 to 3).foldLeft("x → x@1".dhall)((e, _) => Semantics.shift(true, x, 0, e)))
+    // Contexts that add variables with different names in a different order are not equal, even if all shifted types are the same.
+    val y       = VarName("y")
+    val gammaXY = KnownVars.empty.prependAndShift(x, "Bool".dhall).prependAndShift(y, "Bool".dhall)
+    val gammaYX = KnownVars.empty.prependAndShift(y, "Bool".dhall).prependAndShift(x, "Bool".dhall)
+    expect(gammaXY.variables == gammaYX.variables, gammaXY != gammaYX)
+  }
+
+  test("deeply nested expressions are normalized without stack overflow") {
+    val n                                                                                           = 50000
+    val one                                                                                         = Expression(NaturalLiteral(1))
+    val x                                                                                           = v("x")
+    def leftNested(first: Expression, operator: Operator, next: Expression, count: Int): Expression =
+      (1 to count).foldLeft(first)((acc, _) => acc.op(operator)(next))
+
+    val sumOfOnes = leftNested(one, Operator.Plus, one, n)
+    expect(sumOfOnes.exprCount > n, sumOfOnes.betaNormalized == Expression(NaturalLiteral(n + 1)))
+
+    val sumOfX = leftNested(x, Operator.Plus, x, n)
+    expect(Semantics.substitute(sumOfX, VarName("x"), 0, one).betaNormalized == Expression(NaturalLiteral(n + 1)))
+    val x1     = Expression(Variable(VarName("x"), 1))
+    expect(Semantics.shift(true, VarName("x"), 0, sumOfX) == leftNested(x1, Operator.Plus, x1, n))
+    val y      = Expression(Variable(underscore, 0))
+    expect(((x | ~Natural) -> sumOfX).alphaNormalized == ((y | ~Natural) -> leftNested(y, Operator.Plus, y, n)))
+
+    val text = leftNested(x, Operator.TextAppend, Expression(TextLiteral.ofString[Expression]("a")), 5000)
+    expect(text.betaNormalized == Expression(TextLiteral(List(("", x)), "a" * 5000)))
+
+    // Every level of a chain of list appends creates a new list, so the time grows quadratically with the length of the chain. This chain is shorter,
+    // but it is still nested deeper than the recursion limit.
+    val list = Expression(NonEmptyList(Seq(one)))
+    expect(leftNested(list, Operator.ListAppend, list, 300).betaNormalized == Expression(NonEmptyList(Seq.fill(301)(one))))
+  }
+
+  test("deeply nested expressions are normalized with a tiny cache and compared without stack overflow") {
+    val n                 = 50000
+    val x                 = v("x")
+    val list              = Expression(NonEmptyList(Seq(x)))
+    val session           = EvaluationSession.isolated(alphaCacheSize = 1, betaCacheSize = 1, gammaCacheSize = 1, maxNormalFormsWeight = 1)
+    // The normal forms of the subexpressions cannot be kept in the session's cache, so they must be kept by the normalizer while it is working.
+    val sumOfX            = (1 to n).foldLeft(x)((acc, _) => acc.op(Operator.Plus)(x))
+    expect(session.betaNormalize(sumOfX) == sumOfX)
+    // Without a cache, every list element is beta-normalized again at each level, so this chain is shorter. It is still nested deeper than the recursion limit.
+    val lists             = (1 to 300).foldLeft(list)((acc, _) => acc.op(Operator.ListAppend)(list))
+    expect(session.betaNormalize(lists) == Expression(NonEmptyList(Seq.fill(301)(x))))
+    // Expressions that are not interned are compared node by node.
+    val (copy, different) =
+      try {
+        Expression.enableInterning = false
+        ((1 to n).foldLeft(x)((acc, _) => acc.op(Operator.Plus)(x)), (1 to n).foldLeft(v("y"))((acc, _) => acc.op(Operator.Plus)(x)))
+      } finally Expression.enableInterning = true
+    expect(copy == sumOfX, !(copy eq sumOfX), different != sumOfX)
+  }
+
+  test("normalization by evaluation creates the same intermediate terms when the same expression is normalized again") {
+    val options = BetaNormalizingOptions(normalizationByEvaluation = true)
+    val expr    = "\\(f : Natural -> Natural) -> \\(x : Natural) -> \\(y : Natural) -> f (x + 1) + f y + 2".dhall
+    val session = EvaluationSession.isolated()
+    val first   = session.run(NormalizationByEvaluation.normalize(expr, options))
+    val size    = session.caches.beta.size
+    // The beta-normalization cache already has all nodes with fresh variables that the second run creates.
+    expect(session.run(NormalizationByEvaluation.normalize(expr, options)) == first, session.caches.beta.size == size, first == expr.betaNormalized)
+  }
 }
@@ -0,0 +1,60 @@
+package io.chymyst.dhall.unit
+
+import com.eed3si9n.expecty.Expecty.expect
+import io.chymyst.dhall.Parser.StringAsDhallExpression
+import io.chymyst.dhall.StreamingParser
+import io.chymyst.dhall.Syntax.ExpressionScheme.{NonEmptyList, RecordLiteral}
+
+import java.io.{ByteArrayInputStream, InputStream, SequenceInputStream}
+import scala.jdk.CollectionConverters.IteratorHasAsJava
+import scala.util.Try
+
+class StreamingParserTest extends DhallTest {
+
+  private def stream(source: String): InputStream = new ByteArrayInputStream(source.getBytes("UTF-8"))
+
+  test("streaming parser splits a list literal into the same elements as the full parser") {
+    val source   =
+      """#!/usr/bin/env dhall
+        |-- A list with tricky elements.
+        |[ , { a = 1, b = [ 2, 3 ] }
+        |, "text, with ] and } and ${Natural/show 1}, and \" quote"
+        |, ''
+        |  multi-line, with ''${escaped} and ''' and ${"interpolated, [ text"}
+        |  ''
+        |, {- comment, with ] -} λ(`x, y` : Natural) → `x, y` + 1 -- comment, with ]
+        |, [ { x = "}" } ]
+        |]
+        |""".stripMargin
+    val elements = StreamingParser.listElements(stream(source)).toList
+    val expected = source.dhall.scheme match { case NonEmptyList(exprs) => exprs.toList }
+    expect(elements.length == 5, elements == expected)
+  }
+
+  test("streaming parser splits a record literal into fields") {
+    val source   = "{ a = 1, b.c = \"x, y\", `d e` = [ 1, 2 ] }"
+    val fields   = StreamingParser.recordFields(stream(source)).toList
+    val expected = source.dhall.scheme match { case RecordLiteral(defs) => defs.toList }
+    expect(fields.map(_._1.name) == List("a", "b", "d e"), fields.toSet == expected.toSet)
+    expect(StreamingParser.recordFields(stream("{=}")).isEmpty, StreamingParser.listElements(stream("[] : List Natural")).isEmpty)
+  }
+
+  test("streaming parser reports errors") {
+    expect(Try(StreamingParser.listElements(stream("1 + 1")).toList).failed.get.getMessage contains "expected the input to start with '['")
+    expect(Try(StreamingParser.listElements(stream("[ 1, 2")).toList).failed.get.getMessage contains "unexpected end of input")
+    expect(Try(StreamingParser.listElements(stream("[ 1, 2 ] # [ 3 ]")).toList).failed.get.getMessage contains "after the closing ']'")
+  }
+
+  test("streaming parser processes a large list one element at a time") {
+    val count  = 100000
+    // Generate the input lazily, so that the whole file is never held in memory.
+    val chunks = Iterator("[ ") ++ (1 to count).iterator.map(i => s"""{ id = $i, name = "item $i" }, """) ++ Iterator("]")
+    val input  = new SequenceInputStream(chunks.map(stream).asJavaEnumeration)
+    var total  = 0
+    StreamingParser.foreachListElement(input) { expr =>
+      expect(expr.scheme.isInstanceOf[RecordLiteral[_]])
+      total += 1
+    }
+    expect(total == count)
+  }
+}
@@ -2,7 +2,12 @@ package io.chymyst.dhall.unit
 
 import com.eed3si9n.expecty.Expecty.expect
 import io.chymyst.dhall.Parser.StringAsDhallExpression
-import io.chymyst.dhall.Syntax
+import io.chymyst.dhall.Semantics.BetaNormalizingOptions
+import io.chymyst.dhall.Syntax.Expression.v
+import io.chymyst.dhall.Syntax.ExpressionScheme.{Let, NaturalLiteral}
+import io.chymyst.dhall.Syntax.Expression
+import io.chymyst.dhall.SyntaxConstants.VarName
+import io.chymyst.dhall.{EvaluationSession, Semantics, Syntax}
 
 // Measure times taken by parsing, pretty-printing, and beta-normalizing.
 // TODO Need to fix stack overflow for large expressions.
@@ -119,4 +124,30 @@ class StressTest extends DhallTest {
     measure(generate, 12, 2)
   }
 
+  test("normalization by evaluation takes linear time for long chains of let bindings") {
+    val options = BetaNormalizingOptions(normalizationByEvaluation = true)
+
+    // let x = 0 let x = x + 1 ... let x = x + 1 in x, with n additions.
+    def letChain(n: Int): Expression = {
+      val body = (1 to n).foldLeft(v("x"))((body, _) => Expression(Let(VarName("x"), None, v("x") + Expression(NaturalLiteral(1)), body)))
+      Expression(Let(VarName("x"), None, Expression(NaturalLiteral(0)), body))
+    }
+
+    // Each measurement uses new caches, so that no normal forms are reused. Take the best of several runs to reduce noise.
+    def bestTime(n: Int): Long = {
+      val expr = letChain(n)
+      (1 to 3).map { _ =>
+        val (result, elapsed) = elapsedNanos(EvaluationSession.isolated().run(Semantics.betaNormalizeAndExpand(expr, options)))
+        expect(result == Expression(NaturalLiteral(n)))
+        elapsed
+      }.min
+    }
+
+    val n = 2000
+    bestTime(n) // Warm up the JIT compiler.
+    val timeN  = bestTime(n)
+    val time2N = bestTime(2 * n)
+    // With substitution, the time grows quadratically with the number of bindings; a linear algorithm takes about twice as long for twice as many.
+    expect(time2N < 3 * timeN)
+  }
 }
@@ -7,6 +7,8 @@ import io.chymyst.dhall.Yaml
 import io.chymyst.dhall.Yaml.YamlOptions
 import munit.FunSuite
 
+import java.io.ByteArrayOutputStream
+
 class YamlTest extends FunSuite {
   val options = YamlOptions()
 
@@ -106,4 +108,44 @@ class YamlTest extends FunSuite {
     )
   }
 
+  test("yaml and json output omit null record fields and write maps, timestamps, and multiline strings") {
+    val value = """{ a = None Natural, b = [ { x = None Natural } ], c = [ None Natural, Some 1 ],
+                  |  d = [ { mapKey = "k", mapValue = { date = 2020-01-02, time = 03:04:05 } } ], s = "x\ny" }""".stripMargin.dhall.betaNormalized
+    expect(
+      Yaml.toYaml(value, options).merge ==
+        """c:
+          |  - null
+          |  - 1
+          |d:
+          |  k: "2020-01-02T03:04:05"
+          |s: |
+          |  x
+          |  y
+          |""".stripMargin
+    )
+    expect(
+      Yaml
+        .toYaml("{ a = None Natural, c = [ None Natural, Some 1 ], d = [ { mapKey = \"k\", mapValue = 1 } ] }".dhall, options.copy(jsonFormat = true)).merge ==
+        """{
+          |  "c": [
+          |    null,
+          |    1
+          |  ],
+          |  "d": {
+          |    "k": 1
+          |  }
+          |}
+          |""".stripMargin
+    )
+  }
+
+  test("yaml output is written to a stream only if the value can be converted") {
+    val dhallFile = DhallFile(Seq(), "-- comment", "{ a = [ 1, 2 ], b = < X | Y : Text >.Y \"y\" }".dhall)
+    val output    = new ByteArrayOutputStream
+    expect(Yaml.writeYaml(dhallFile, options, output).isRight, output.toString("UTF-8") == Yaml.toYaml(dhallFile, options).merge)
+
+    val failed = new ByteArrayOutputStream
+    val result = Yaml.writeYaml(DhallFile(Seq(), "", "{ a = 1, f = λ(x : Natural) → x }".dhall), options, failed)
+    expect(result.swap.exists(_ contains "Unsupported expression type for YAML export"), failed.size == 0)
+  }
 }
@@ -39,7 +39,7 @@ object Applicative {
   def seqTuple3[F[_]: Applicative, A, B, C](t3: (F[A], F[B], F[C])): F[(A, B, C)] = (t3._1 zip t3._2 zip t3._3).map { case ((a, b), c) => (a, b, c) }
 
   def seqSeq[F[_]: Applicative, A](fas: Seq[F[A]]): F[Seq[A]] =
-    fas.foldLeft(Applicative[F].pure(Seq[A]())) { (prev, fa) => (prev zip fa).map { case (prevSeq, a) => prevSeq :+ a } }
+    fas.foldLeft(Applicative[F].pure(Vector[A](): Seq[A])) { (prev, fa) => (prev zip fa).map { case (prevSeq, a) => prevSeq :+ a } }
 
   def apply[F[_]: Applicative]: Applicative[F]                               = implicitly[Applicative[F]]
   /*
@@ -85,7 +85,7 @@ object Monoid {
   }
 
   implicit def monoidSeq[A]: Monoid[Seq[A]] = new Monoid[Seq[A]] {
-    override def empty: Seq[A] = Seq()
+    override def empty: Seq[A] = Vector()
 
     override def combine(a: Seq[A], b: Seq[A]): Seq[A] = a ++ b
   }
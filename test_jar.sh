@@ -9,7 +9,7 @@ fi
 
 log=/tmp/test_jar.log
 
-j="java $jopt -jar $d"
+j="${DHALL_COMMAND:-java $jopt -jar $d}" # Set DHALL_COMMAND to test a native executable instead of the JAR.
 
 $j --help | tee -a $log | grep -- 'Path to the input Dhall file'
 